@@ -12,6 +12,8 @@
  *******************************************************************************/
 package ch.carteggio;
 
+import java.io.File;
+
 import org.acra.ACRA;
 import org.acra.ReportField;
 import org.acra.ReportingInteractionMode;
@@ -22,6 +24,7 @@ import android.os.Handler;
 import ch.carteggio.net.ImapMessageStore;
 import ch.carteggio.net.NetworkFactories;
 import ch.carteggio.net.SmtpMessageTransport;
+import ch.carteggio.net.SpoolingStorageProvider;
 import ch.carteggio.provider.sync.NotificationService;
 
 
@@ -44,6 +47,8 @@ public class CarteggioApplication extends Application {
 
 		ACRA.getErrorReporter().setReportSender(new BugReportSender(this, new Handler()));
 		
+		SpoolingStorageProvider.install(new File(getCacheDir(), "spool"));
+		
 		NetworkFactories.getInstance(getApplicationContext()).registerStoreFactory("imap", new ImapMessageStore.Factory(getApplicationContext()));
 		NetworkFactories.getInstance(getApplicationContext()).registerStoreFactory("imap+ssl+", new ImapMessageStore.Factory(getApplicationContext()));
 		NetworkFactories.getInstance(getApplicationContext()).registerStoreFactory("imap+tls+", new ImapMessageStore.Factory(getApplicationContext()));
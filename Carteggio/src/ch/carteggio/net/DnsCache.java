@@ -0,0 +1,152 @@
+/*   
+ * Copyright (c) 2014, Lorenzo Keller
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ *    
+ */
+package ch.carteggio.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Caches the addresses of the servers we connect to.
+ * 
+ * The lookups are kept for at most {@link #TTL} milliseconds, since the
+ * resolver doesn't tell us the real TTL of the records, and the whole cache
+ * is flushed when the device changes network. Failed lookups are not cached.
+ */
+public class DnsCache {
+
+	private static final String LOG_TAG = "DnsCache";
+
+	public static boolean DEBUG = false;
+	
+	/**
+	 * How long an entry is used before the host is looked up again.
+	 */
+	public static final long TTL = 5 * 60 * 1000;
+	
+	private static final int MAX_ENTRIES = 32;
+	
+	private static class Entry {
+		
+		private final InetAddress[] mAddresses;
+		private final long mExpiration;
+		
+		public Entry(InetAddress[] addresses, long expiration) {
+			mAddresses = addresses;
+			mExpiration = expiration;
+		}
+		
+	}
+	
+	private static final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(
+			MAX_ENTRIES, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+		
+	};
+	
+	/**
+	 * Flushes the cache when the connectivity changes, the addresses seen
+	 * on the previous network may not be the right ones on the new one.
+	 */
+	private static class ConnectivityReceiver extends BroadcastReceiver {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			flush();
+		}
+		
+	}
+	
+	private static boolean mReceiverRegistered;
+	
+	/**
+	 * Starts listening for connectivity changes.
+	 */
+	public static synchronized void register(Context context) {
+		if (!mReceiverRegistered) {
+			context.getApplicationContext().registerReceiver(
+					new ConnectivityReceiver(),
+					new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+			mReceiverRegistered = true;
+		}
+	}
+	
+	/**
+	 * Returns all the addresses of a host, looking it up only if the cached
+	 * ones are missing or expired.
+	 */
+	public static InetAddress[] lookup(String host) throws UnknownHostException {
+		
+		String key = host.toLowerCase(Locale.US);
+		long now = SystemClock.elapsedRealtime();
+		
+		synchronized (mEntries) {
+			Entry entry = mEntries.get(key);
+			if (entry != null && entry.mExpiration > now) {
+				return entry.mAddresses.clone();
+			}
+		}
+		
+		InetAddress[] addresses = InetAddress.getAllByName(host);
+		
+		if (DEBUG) {
+			Log.d(LOG_TAG, "Resolved " + host + " to " + addresses.length + " addresses");
+		}
+		
+		synchronized (mEntries) {
+			mEntries.put(key, new Entry(addresses.clone(), now + TTL));
+		}
+		
+		return addresses;
+	}
+	
+	/**
+	 * Forgets the addresses of a host, for instance because none of them
+	 * could be reached.
+	 */
+	public static void invalidate(String host) {
+		synchronized (mEntries) {
+			mEntries.remove(host.toLowerCase(Locale.US));
+		}
+	}
+	
+	public static void flush() {
+		
+		if (DEBUG) {
+			Log.d(LOG_TAG, "Flushing the cache");
+		}
+		
+		synchronized (mEntries) {
+			mEntries.clear();
+		}
+	}
+	
+}
@@ -15,6 +15,7 @@ package ch.carteggio.net;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Locale;
 
 /**
@@ -77,6 +78,42 @@ public class FixedLengthInputStream extends InputStream {
         return d;
     }
 
+    /**
+     * Copies the bytes that haven't been read yet to an output stream, straight
+     * from the buffer if the underlying stream is a {@link PeekableInputStream}.
+     *
+     * @return the number of bytes copied.
+     */
+    public long copyRemaining(OutputStream out) throws IOException {
+        long transferred;
+
+        if (mIn instanceof PeekableInputStream) {
+            transferred = ((PeekableInputStream) mIn).transfer(out, mLength - mCount);
+            mCount += transferred;
+        } else {
+            byte[] buffer = new byte[4096];
+            transferred = 0;
+            int count;
+            while ((count = read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                transferred += count;
+            }
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Skips the bytes that haven't been read yet.
+     */
+    public void skipRemaining() throws IOException {
+        while (mCount < mLength) {
+            if (skip(mLength - mCount) <= 0 && read() == -1) {
+                throw new IOException("skipRemaining(): end of stream reached");
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return String.format(Locale.US, "FixedLengthInputStream(in=%s, length=%d)", mIn.toString(), mLength);
@@ -23,6 +23,8 @@ import android.os.PowerManager.WakeLock;
 import android.util.Log;
 import ch.carteggio.net.imap.FetchProfile;
 import ch.carteggio.net.imap.FetchProfile.Item;
+import ch.carteggio.net.imap.ImapFolderState;
+import ch.carteggio.net.imap.ImapFolderState.ImapFolderListener;
 import ch.carteggio.net.imap.ImapMessage;
 import ch.carteggio.net.imap.ImapPreferences;
 import ch.carteggio.net.imap.ImapSession;
@@ -64,40 +66,105 @@ public class ImapMessageStore implements MessageStore {
 	@Override
 	public SynchronizationPoint createSynchronizationPoint(String syncPoint) {
 		
-		if (syncPoint == null) return new ImapSynchronizationPoint(-1);
+		if (syncPoint == null) return new ImapSynchronizationPoint(-1, -1, -1);
 		
 		try {
-			return new ImapSynchronizationPoint(Long.parseLong(syncPoint));
+			
+			String[] parts = syncPoint.split(",");
+			
+			// sync points saved by older versions only contain the next uid
+			if (parts.length == 1) {
+				return new ImapSynchronizationPoint(-1, Long.parseLong(parts[0]), -1);
+			}
+			
+			return new ImapSynchronizationPoint(Long.parseLong(parts[0]),
+					Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+			
 		} catch (Exception ex) {
-			return new ImapSynchronizationPoint(-1);
+			return new ImapSynchronizationPoint(-1, -1, -1);
 		}
 	}
 
+	/**
+	 * The UIDVALIDITY of the folder, the minimum UID of the messages that
+	 * haven't been retrieved yet and, if the server supports CONDSTORE, the
+	 * HIGHESTMODSEQ of the folder when they were retrieved.
+	 */
 	private class ImapSynchronizationPoint implements SynchronizationPoint {
 
+		long uidValidity;
+		
 		long nextMinimumMessageUid;
 		
-		public ImapSynchronizationPoint(long nextMinimumMessageUid) {
+		long highestModSeq;
+		
+		public ImapSynchronizationPoint(long uidValidity, long nextMinimumMessageUid, long highestModSeq) {
+			this.uidValidity = uidValidity;
 			this.nextMinimumMessageUid = nextMinimumMessageUid;
+			this.highestModSeq = highestModSeq;
 		}
 
 		public void update(long nextMessageId) {
 			nextMinimumMessageUid = Math.max(nextMessageId, nextMinimumMessageUid);
 		}
 
+		public void update(ImapFolderState state) {
+			uidValidity = state.getUidValidity();
+			highestModSeq = state.getHighestModSeq();
+		}
+		
+		/**
+		 * Returns true if the folder state, as reported when the folder was
+		 * selected, shows that no message has been added since this point.
+		 */
+		public boolean isCurrent(ImapFolderState state) {
+			
+			if (!state.isUnchangedSinceOpen() || uidValidity != state.getUidValidity()) {
+				return false;
+			}
+			
+			// UIDNEXT grew, for example after a STATUS poll, so whatever the
+			// modification sequence says there are new messages
+			if (state.getUidNext() > nextMinimumMessageUid) {
+				return false;
+			}
+			
+			if (highestModSeq > 0 && highestModSeq == state.getHighestModSeq()) {
+				return true;
+			}
+			
+			return state.getUidNext() > 0 && state.getUidNext() <= nextMinimumMessageUid;
+		}
+		
 		@Override
 		public String save() {
-			return Long.toString(nextMinimumMessageUid);
+			return uidValidity + "," + nextMinimumMessageUid + "," + highestModSeq;
 		}
 		
 	}
 	
-	private class Folder implements MessageStore.Folder {
+	private class Folder implements MessageStore.Folder, ImapFolderListener {
 
 		private ImapSession mFolder;
 		
+		/*
+		 * Set when the server notifies that messages were added, reset when
+		 * the new messages are retrieved.
+		 */
+		private volatile boolean mMessagesAdded;
+		
 		public Folder(ImapSession folder) {
 			this.mFolder = folder;
+			folder.getFolderState().setListener(this);
+		}
+		
+		@Override
+		public void onFolderChanged(String folderName) {
+		}
+		
+		@Override
+		public void onMessagesAdded(String folderName) {
+			mMessagesAdded = true;
 		}
 		
 		@Override
@@ -119,24 +186,52 @@ public class ImapMessageStore implements MessageStore {
 			
 			ImapSynchronizationPoint imapSyncPoint = (ImapSynchronizationPoint) point;
 			
+			ImapFolderState state = mFolder.getFolderState();
+			
+			mMessagesAdded = false;
+			
 			try {
 				
+				// the UIDs we know don't refer to the messages in the folder anymore
+				if (imapSyncPoint.uidValidity != -1
+						&& imapSyncPoint.uidValidity != state.getUidValidity()) {
+					imapSyncPoint.nextMinimumMessageUid = -1;
+				}
+				
 				// if this is the first time we start carteggio we don't want to load all
 				// messages (the mailbox could be huge). Instead we check what is the highest
 				// uid and next time we will be able to look for new messages
 				if  (imapSyncPoint.nextMinimumMessageUid == -1) {
 					
-					imapSyncPoint.update(mFolder.getHighestUid() + 1);
+					imapSyncPoint.update(state);
+					imapSyncPoint.update(mFolder.getUidNext());
+					
+					return new Message[0];
+					
+				} else if (imapSyncPoint.isCurrent(state)) {
+					
+					// the answer to SELECT tells that nothing was added
+					imapSyncPoint.update(state.getUidNext());
 					
 					return new Message[0];
+					
 				} else {
-								
+					
+					// the state must be taken before searching, so that nothing
+					// added meanwhile is skipped the next time
+					long uidNext = state.getUidNext();
+					imapSyncPoint.update(state);
+					
 					ImapMessage[] imapMessages = mFolder.getMessagesAddedAfter(imapSyncPoint.nextMinimumMessageUid, null);
 					
 					for ( ImapMessage message : imapMessages ) {
 						imapSyncPoint.update(message.getUid() + 1);					
 					}
 					
+					// the messages below UIDNEXT existed before the search, also
+					// the ones that were deleted since then
+					imapSyncPoint.update(uidNext);
+					
 					return imapMessages;
 				}
 				
@@ -151,17 +246,30 @@ public class ImapMessageStore implements MessageStore {
 			
 			ImapSynchronizationPoint imapSyncPoint = (ImapSynchronizationPoint) point;
 			
-			// check if there was already a new message coming in from the sync point
+			// the folder state tells if messages were added after the sync point,
+			// also while they were being processed. IDLE returns for any change, we
+			// keep waiting until there are messages to retrieve
+			while (!hasMessagesAdded(imapSyncPoint)) {
+				mFolder.waitForChanges(wakeLock);
+			}
 			
-			long highestUid = mFolder.getHighestUid();
+		}
+		
+		@Override
+		public boolean hasMessagesAfter(SynchronizationPoint point) throws MessagingException {
 			
-			if ( highestUid >= imapSyncPoint.nextMinimumMessageUid) {
-				imapSyncPoint.update(highestUid);
-				return;
-			}
+			ImapSynchronizationPoint imapSyncPoint = (ImapSynchronizationPoint) point;
 			
-			mFolder.waitForChanges(wakeLock);
+			if (!hasMessagesAdded(imapSyncPoint)) {
+				mFolder.checkStatus();
+			}
 			
+			return hasMessagesAdded(imapSyncPoint);
+		}
+		
+		private boolean hasMessagesAdded(ImapSynchronizationPoint point) {
+			return mMessagesAdded
+					|| mFolder.getFolderState().getUidNext() > point.nextMinimumMessageUid;
 		}
 		
 		@Override
@@ -220,7 +328,10 @@ public class ImapMessageStore implements MessageStore {
 			try {
 				mFolder.moveMessages(toImapMessages(messages), ((Folder) destination).mFolder);
 				
-				mFolder.expunge();
+				// without MOVE or UIDPLUS the moved messages are only flagged as deleted
+				if (!mFolder.isMoveExpunging()) {
+					mFolder.expunge();
+				}
 				
 			} catch (MessagingException e) {
 				throw new MessagingException("Unable to move messages", e);				
@@ -262,7 +373,12 @@ public class ImapMessageStore implements MessageStore {
 			
 			try {
 			
-				ImapStore store = new ImapStore(mContext, account.getIncomingServer(), new ImapPreferences(), account.getIncomingPassword());
+				ImapPreferences preferences = new ImapPreferences();
+				
+				preferences.setCompressionOnMobile(account.isCompressionOnMobile());
+				preferences.setCompressionOnWifi(account.isCompressionOnWifi());
+				
+				ImapStore store = new ImapStore(mContext, account.getIncomingServer(), preferences, account.getIncomingPassword());
 	
 				return new ImapMessageStore(mContext, store);
 				
@@ -259,6 +259,26 @@ public interface MessageStore {
 		public void waitForChanges(SynchronizationPoint point, WakeLock wakeLock)
 				throws MessagingException;
 
+		/**
+		 * 
+		 * Checks if messages have been added to the folder after the specified
+		 * {@link SynchronizationPoint}. This is cheaper than
+		 * {@link #getMessagesAfter(SynchronizationPoint)} and is meant to be
+		 * used to poll servers that don't support waiting for changes.
+		 * 
+		 * This function must be called only on open folders.
+		 * 
+		 * @param point
+		 *            the {@link SynchronizationPoint} of the last time the
+		 *            messages were retrieved
+		 * 
+		 * @return true if there are messages to retrieve
+		 * 
+		 * @throws MessagingException
+		 */
+		public boolean hasMessagesAfter(SynchronizationPoint point)
+				throws MessagingException;
+
 		/**
 		 * 
 		 * Returns true if the server supports
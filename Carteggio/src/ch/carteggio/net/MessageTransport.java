@@ -12,6 +12,8 @@
  *******************************************************************************/
 package ch.carteggio.net;
 
+import java.util.List;
+
 import org.apache.james.mime4j.dom.Message;
 
 import ch.carteggio.provider.CarteggioAccount;
@@ -42,6 +44,74 @@ public interface MessageTransport {
 	 */
 	public void sendMessage(Message message) throws MessagingException;
 
+	/**
+	 * 
+	 * Sends the given messages, using the same connection for all of them.
+	 * A failure to send one of them doesn't prevent sending the others.
+	 * 
+	 * @param messages
+	 *            the messages to be sent
+	 * 
+	 * @return the outcome of sending every message, in the same order
+	 */
+	public List<Result> sendMessages(List<Message> messages);
+	
+	/**
+	 * 
+	 * Releases the connection kept open between messages. The transport can
+	 * still be used afterwards.
+	 * 
+	 */
+	public void close();
+
+	/**
+	 * 
+	 * The outcome of sending a message with {@link MessageTransport#sendMessages(List)}.
+	 * 
+	 */
+	public static class Result {
+		
+		public enum Status {
+			DELIVERED,
+			TEMPORARY_FAILURE,
+			PERMANENT_FAILURE
+		}
+		
+		private final Status mStatus;
+		private final MessagingException mError;
+		
+		private Result(Status status, MessagingException error) {
+			mStatus = status;
+			mError = error;
+		}
+		
+		public static Result delivered() {
+			return new Result(Status.DELIVERED, null);
+		}
+		
+		/**
+		 * Creates the result of a message that couldn't be sent, the failure is
+		 * permanent if the exception says so. 
+		 */
+		public static Result failed(MessagingException error) {
+			return new Result(error.isPermanentFailure() ? Status.PERMANENT_FAILURE
+					: Status.TEMPORARY_FAILURE, error);
+		}
+		
+		public Status getStatus() {
+			return mStatus;
+		}
+		
+		/**
+		 * Returns the reason why the message couldn't be sent, null if it was
+		 * delivered.
+		 */
+		public MessagingException getError() {
+			return mError;
+		}
+		
+	}
+	
 	/**
 	 * 
 	 * Factory used to create a message transport for a given
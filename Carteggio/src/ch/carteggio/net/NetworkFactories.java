@@ -29,6 +29,8 @@ public class NetworkFactories {
 	
 	private NetworkFactories(Context context) {
 	
+		DnsCache.register(context);
+		
 		registerStoreFactory("imap+tls", new ImapMessageStore.Factory(context));		
 		registerTransportFactory("smtp", new SmtpMessageTransport.Factory());		
 		
@@ -15,54 +15,190 @@ package ch.carteggio.net;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
- * A filtering InputStream that allows single byte "peeks" without consuming the byte. The
+ * A buffering InputStream that allows "peeks" without consuming the bytes. The
  * client of this stream can call peek() to see the next available byte in the stream
  * and a subsequent read will still return the peeked byte.
+ *
+ * <p>
+ * Besides single byte peeks the stream offers bulk operations that work directly on
+ * the buffer: searching for a byte ({@link #indexOf(int)},
+ * {@link #indexOfAny(boolean[])}), reading a line ({@link #readLineInto(StringBuilder)}),
+ * skipping and copying a number of bytes ({@link #skip(long)},
+ * {@link #transfer(OutputStream, long)}). Protocol parsers built on them call the
+ * underlying stream, typically a socket or TLS stream, only once per buffer instead of
+ * once per byte.
+ * </p>
+ *
+ * <p>
+ * The buffer grows if a search doesn't find the byte in the buffered data, so a single
+ * token or line is always available in the buffer once it has been found. It doesn't
+ * grow beyond {@link #MAX_BUFFER_SIZE}, a longer token or line is reported as an
+ * IOException.
+ * </p>
  */
 public class PeekableInputStream extends InputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    public static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+
     private InputStream mIn;
-    private boolean mPeeked;
-    private int mPeekedByte;
+
+    /*
+     * The bytes between mPosition and mLimit have been read from mIn but not
+     * consumed yet.
+     */
+    private byte[] mBuffer;
+    private int mPosition;
+    private int mLimit;
 
     public PeekableInputStream(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public PeekableInputStream(InputStream in, int bufferSize) {
         this.mIn = in;
+        this.mBuffer = new byte[bufferSize];
     }
 
     @Override
     public int read() throws IOException {
-        if (!mPeeked) {
-            return mIn.read();
-        } else {
-            mPeeked = false;
-            return mPeekedByte;
+        if (mPosition == mLimit && !fill()) {
+            return -1;
         }
+        return mBuffer[mPosition++] & 0xff;
     }
 
     public int peek() throws IOException {
-        if (!mPeeked) {
-            mPeekedByte = mIn.read();
-            mPeeked = true;
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition] & 0xff;
+    }
+
+    /**
+     * Returns the byte that is {@code offset} bytes after the next byte of the stream
+     * without consuming anything, {@code peek(0)} is the same as {@link #peek()}.
+     *
+     * @return the byte or -1 if the stream ends before it.
+     */
+    public int peek(int offset) throws IOException {
+        while (mPosition + offset >= mLimit) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return mBuffer[mPosition + offset] & 0xff;
+    }
+
+    /**
+     * Finds the next occurrence of a byte without consuming anything.
+     *
+     * @return the number of bytes that precede the byte or -1 if the stream ends before
+     *          the byte is found.
+     */
+    public int indexOf(int b) throws IOException {
+        byte value = (byte) b;
+        int length = 0;
+        while (true) {
+            for (int i = mPosition + length; i < mLimit; i++, length++) {
+                if (mBuffer[i] == value) {
+                    return length;
+                }
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Finds the next byte that belongs to a set without consuming anything.
+     *
+     * @param bytes
+     *          256 entries, the bytes for which the entry is true belong to the set.
+     *
+     * @return the number of bytes that precede the byte or -1 if the stream ends before
+     *          a byte of the set is found.
+     */
+    public int indexOfAny(boolean[] bytes) throws IOException {
+        int length = 0;
+        while (true) {
+            for (int i = mPosition + length; i < mLimit; i++, length++) {
+                if (bytes[mBuffer[i] & 0xff]) {
+                    return length;
+                }
+            }
+            if (!fill()) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Reads a line terminated by LF and appends it to a buffer, each byte is appended
+     * as a char. The line terminator, LF or CRLF, is consumed but not appended.
+     *
+     * @return false if the end of the stream was reached before reading anything.
+     */
+    public boolean readLineInto(StringBuilder line) throws IOException {
+        int length = indexOf('\n');
+
+        if (length == -1) {
+            // last line without terminator
+            length = mLimit - mPosition;
+            if (length == 0) {
+                return false;
+            }
+            appendTo(line, length);
+            mPosition += length;
+            return true;
+        }
+
+        int end = length;
+        if (end > 0 && mBuffer[mPosition + end - 1] == '\r') {
+            end--;
+        }
+        appendTo(line, end);
+        mPosition += length + 1;
+        return true;
+    }
+
+    private void appendTo(StringBuilder line, int length) {
+        line.ensureCapacity(line.length() + length);
+        for (int i = mPosition, end = mPosition + length; i < end; i++) {
+            line.append((char) (mBuffer[i] & 0xff));
         }
-        return mPeekedByte;
     }
 
     @Override
     public int read(byte[] b, int offset, int length) throws IOException {
-        if (!mPeeked) {
-            return mIn.read(b, offset, length);
-        } else {
-            b[offset] = (byte)mPeekedByte;
-            mPeeked = false;
-            int r = mIn.read(b, offset + 1, length - 1);
-            if (r == -1) {
-                return 1;
-            } else {
-                return r + 1;
+        if (length == 0) {
+            return 0;
+        }
+
+        int buffered = mLimit - mPosition;
+
+        if (buffered == 0) {
+            if (length >= mBuffer.length) {
+                // don't copy large reads through the buffer
+                return mIn.read(b, offset, length);
+            }
+            if (!fill()) {
+                return -1;
             }
+            buffered = mLimit - mPosition;
         }
+
+        int count = Math.min(buffered, length);
+        System.arraycopy(mBuffer, mPosition, b, offset, count);
+        mPosition += count;
+        return count;
     }
 
     @Override
@@ -70,9 +206,84 @@ public class PeekableInputStream extends InputStream {
         return read(b, 0, b.length);
     }
 
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+
+        // the data is discarded from the buffer, also when it has to be read first
+        if (mPosition == mLimit && !fill()) {
+            return 0;
+        }
+
+        int count = (int) Math.min(mLimit - mPosition, n);
+        mPosition += count;
+        return count;
+    }
+
+    /**
+     * Copies the next {@code n} bytes of the stream to an output stream.
+     *
+     * @return the number of bytes copied, less than {@code n} only if the stream ended.
+     */
+    public long transfer(OutputStream out, long n) throws IOException {
+        long transferred = 0;
+        while (transferred < n) {
+            if (mPosition == mLimit && !fill()) {
+                break;
+            }
+            int count = (int) Math.min(mLimit - mPosition, n - transferred);
+            out.write(mBuffer, mPosition, count);
+            mPosition += count;
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (mLimit - mPosition) + mIn.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Reads more data from the underlying stream into the buffer. The unconsumed bytes
+     * are moved to the beginning of the buffer, which grows if it is full.
+     *
+     * @return false if the end of the stream has been reached.
+     * @throws IOException if the buffer is full and can't grow any more.
+     */
+    private boolean fill() throws IOException {
+        if (mPosition > 0) {
+            System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+            mLimit -= mPosition;
+            mPosition = 0;
+        }
+
+        if (mLimit == mBuffer.length) {
+            if (mBuffer.length >= MAX_BUFFER_SIZE) {
+                throw new IOException("fill(): more than " + MAX_BUFFER_SIZE
+                        + " bytes buffered without finding the end of the data");
+            }
+            mBuffer = Arrays.copyOf(mBuffer, Math.min(mBuffer.length * 2, MAX_BUFFER_SIZE));
+        }
+
+        int count = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        if (count <= 0) {
+            return false;
+        }
+        mLimit += count;
+        return true;
+    }
+
     @Override
     public String toString() {
-        return String.format(Locale.US, "PeekableInputStream(in=%s, peeked=%b, peekedByte=%d)",
-                             mIn.toString(), mPeeked, mPeekedByte);
+        return String.format(Locale.US, "PeekableInputStream(in=%s, buffered=%d)",
+                             mIn.toString(), mLimit - mPosition);
     }
 }
@@ -12,15 +12,24 @@
  *******************************************************************************/
 package ch.carteggio.net;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 
+import org.apache.james.mime4j.dom.Body;
+import org.apache.james.mime4j.dom.Entity;
 import org.apache.james.mime4j.dom.Message;
 import org.apache.james.mime4j.dom.MessageWriter;
+import org.apache.james.mime4j.dom.Multipart;
+import org.apache.james.mime4j.dom.TextBody;
 import org.apache.james.mime4j.dom.address.Address;
 import org.apache.james.mime4j.dom.address.Mailbox;
+import org.apache.james.mime4j.message.AbstractEntity;
 import org.apache.james.mime4j.message.DefaultMessageWriter;
+import org.apache.james.mime4j.stream.Field;
+import org.apache.james.mime4j.util.MimeUtil;
 
 import ch.carteggio.net.smtp.SmtpMessage;
 import ch.carteggio.net.smtp.SmtpTransport;
@@ -29,6 +38,16 @@ import ch.carteggio.provider.CarteggioAccount;
 
 public class SmtpMessageTransport implements MessageTransport {
 
+	/**
+	 * Longest line allowed in 8bit data, without the CRLF (RFC 5321).
+	 */
+	private static final int MAX_LINE_LENGTH = 998;
+	
+	/**
+	 * Longest boundary allowed in a multipart body (RFC 2046).
+	 */
+	private static final int MAX_BOUNDARY_LENGTH = 70;
+	
 	private SmtpTransport mTransport;
 	
 	public SmtpMessageTransport(SmtpTransport transport) {
@@ -50,22 +69,227 @@ public class SmtpMessageTransport implements MessageTransport {
 			destinationAddresses.add( ( (Mailbox) a).getAddress());
 		}
 		
-		MessageWriter writer = new DefaultMessageWriter();
+		// the extensions of the server are known once we are connected
+		mTransport.prepareSession();
 		
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Encoding encoding = Encoding.ENCODING_7BIT;
 		
 		try {
-			writer.writeMessage(message, out);
+			
+			if (mTransport.is8bitEncodingAllowed()) {
+				encoding = removeTransferEncoding(message, mTransport.isBinaryMimeAllowed());
+			}
+			
+			// the message is written straight to the connection
+			SmtpMessage sm = new SmtpMessage(fromAddress, destinationAddresses.toArray(new String[0]), 
+					new MessageContent(message), encoding);
+			
+			mTransport.sendMessageTo(sm);
+			
 		} catch (IOException e) {
 			throw new MessagingException("Error while serializing message", e);
+		} finally {
+			message.dispose();
+		}
+		
+	}
+	
+	@Override
+	public List<Result> sendMessages(List<Message> messages) {
+		
+		List<Result> results = new ArrayList<Result>(messages.size());
+		
+		for (Message message : messages) {
+			
+			try {
+				mTransport.prepareSession();
+			} catch (MessagingException e) {
+				// without a session none of the remaining messages can be sent,
+				// there is no point in trying to connect again for each one
+				for (int i = results.size(); i < messages.size(); i++) {
+					messages.get(i).dispose();
+					results.add(Result.failed(e));
+				}
+				break;
+			}
+			
+			try {
+				sendMessage(message);
+				results.add(Result.delivered());
+			} catch (MessagingException e) {
+				results.add(Result.failed(e));
+			}
+			
+		}
+		
+		return results;
+	}
+	
+	private static class MessageContent implements SmtpMessage.Content {
+		
+		private final Message mMessage;
+		
+		public MessageContent(Message message) {
+			mMessage = message;
+		}
+		
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			MessageWriter writer = new DefaultMessageWriter();
+			writer.writeMessage(mMessage, out);
+		}
+		
+		@Override
+		public long getMaximumSize() {
+			try {
+				return getMaximumEntitySize(mMessage);
+			} catch (IOException e) {
+				return -1;
+			}
+		}
+		
+	}
+	
+	/**
+	 * Returns an upper bound of the size of an entity once written, without
+	 * encoding it. Only text bodies are measured, the size of messages with
+	 * attachments is unknown.
+	 * 
+	 * @return the bound or -1 if the entity has parts that are not text
+	 */
+	private static long getMaximumEntitySize(Entity entity) throws IOException {
+		
+		long size = 2;
+		
+		// folding and line endings at most triple the fields 
+		for (Field field : entity.getHeader()) {
+			size += 3 * (field.getName().length() + 2 + field.getBody().length()) + 2;
+		}
+		
+		Body body = entity.getBody();
+		
+		if (body instanceof Multipart) {
+			
+			Multipart multipart = (Multipart) body;
+			
+			for (Entity part : multipart.getBodyParts()) {
+				long partSize = getMaximumEntitySize(part);
+				if (partSize < 0) {
+					return -1;
+				}
+				size += MAX_BOUNDARY_LENGTH + 6 + partSize;
+			}
+			
+			size += MAX_BOUNDARY_LENGTH + 6;
+			
+			if (multipart.getPreamble() != null) {
+				size += 2 * multipart.getPreamble().length() + 2;
+			}
+			if (multipart.getEpilogue() != null) {
+				size += 2 * multipart.getEpilogue().length() + 2;
+			}
+			
+			return size;
+			
+		} else if (body instanceof TextBody) {
+			
+			InputStream in = ((TextBody) body).getInputStream();
+			
+			try {
+				// the text is in memory or mapped, skipping it doesn't read it
+				long length = in.skip(Long.MAX_VALUE);
+				if (in.read() != -1) {
+					return -1;
+				}
+				// quoted-printable at most triples the text and adds soft line
+				// breaks, the other encodings at most double it
+				return size + 4 * length;
+			} finally {
+				in.close();
+			}
+			
+		} else {
+			return -1;
 		}
 		
-		message.dispose();
+	}
+	
+	/**
+	 * Switches the text parts encoded as quoted-printable or base64 to 8bit,
+	 * or to binary if they have lines that are too long for 8bit, so that they
+	 * are sent as they are.
+	 * 
+	 * @return the encoding of the message once the parts have been changed
+	 */
+	private static Encoding removeTransferEncoding(Entity entity, boolean binaryAllowed) throws IOException {
+		
+		Body body = entity.getBody();
+		
+		if (body instanceof Multipart) {
+			
+			Encoding encoding = Encoding.ENCODING_7BIT;
+			
+			for (Entity part : ((Multipart) body).getBodyParts()) {
+				Encoding partEncoding = removeTransferEncoding(part, binaryAllowed);
+				if (partEncoding.compareTo(encoding) > 0) {
+					encoding = partEncoding;
+				}
+			}
+			
+			return encoding;
+		}
 		
-		SmtpMessage sm = new SmtpMessage(fromAddress, destinationAddresses.toArray(new String[0]), out.toByteArray(), Encoding.ENCODING_7BIT);
+		String transferEncoding = entity.getContentTransferEncoding();
 		
-		mTransport.sendMessageTo(sm);
+		if (body instanceof TextBody && entity instanceof AbstractEntity
+				&& (MimeUtil.isQuotedPrintableEncoded(transferEncoding)
+						|| MimeUtil.isBase64Encoding(transferEncoding))) {
+			
+			boolean eightBit = false;
+			boolean binary = false;
+			int lineLength = 0;
+			int longestLine = 0;
+			
+			InputStream in = ((TextBody) body).getInputStream();
+			
+			try {
+				int c;
+				while ((c = in.read()) != -1) {
+					if (c == '\n') {
+						lineLength = 0;
+					} else if (c != '\r') {
+						lineLength++;
+						longestLine = Math.max(longestLine, lineLength);
+						eightBit |= c >= 0x80;
+						binary |= c == 0;
+					}
+				}
+			} finally {
+				in.close();
+			}
+			
+			AbstractEntity part = (AbstractEntity) entity;
+			
+			if (!binary && longestLine <= MAX_LINE_LENGTH) {
+				part.setContentTransferEncoding(eightBit ? MimeUtil.ENC_8BIT : MimeUtil.ENC_7BIT);
+				return eightBit ? Encoding.ENCODING_8BIT : Encoding.ENCODING_7BIT;
+			} else if (binaryAllowed) {
+				part.setContentTransferEncoding(MimeUtil.ENC_BINARY);
+				return Encoding.ENCODING_BINARY;
+			}
+			
+		} else if (MimeUtil.ENC_8BIT.equalsIgnoreCase(transferEncoding)) {
+			return Encoding.ENCODING_8BIT;
+		} else if (MimeUtil.ENC_BINARY.equalsIgnoreCase(transferEncoding)) {
+			return Encoding.ENCODING_BINARY;
+		}
 		
+		return Encoding.ENCODING_7BIT;
+	}
+	
+	@Override
+	public void close() {
+		mTransport.close();
 	}
 	
 	public static class Factory implements MessageTransport.Factory {
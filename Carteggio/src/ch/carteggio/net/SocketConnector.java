@@ -0,0 +1,261 @@
+/*   
+ * Copyright (c) 2014, Lorenzo Keller
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ *    
+ */
+package ch.carteggio.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Connects to a host racing the attempts to its addresses, as described in
+ * RFC 8305 ("Happy Eyeballs").
+ * 
+ * The addresses are interleaved by family and a new attempt is started every
+ * {@link #CONNECTION_ATTEMPT_DELAY} milliseconds, or as soon as the previous
+ * one failed, while the older ones keep going. The first socket to connect is
+ * returned and the others are closed. TLS, if any, is started by the caller
+ * on the connected socket. The family that won is remembered for
+ * every host and tried first the next time.
+ */
+public class SocketConnector {
+
+	private static final String LOG_TAG = "SocketConnector";
+
+	public static boolean DEBUG = false;
+	
+	/**
+	 * How long to wait for an attempt before starting the next one.
+	 */
+	public static final int CONNECTION_ATTEMPT_DELAY = 250;
+	
+	/*
+	 * For every host, true if IPv6 won the last time we connected to it.
+	 */
+	private static final Map<String, Boolean> mPreferIpv6 = Collections
+			.synchronizedMap(new HashMap<String, Boolean>());
+	
+	/**
+	 * Connects to the given host.
+	 * 
+	 * @param timeout the connect timeout of every single attempt
+	 * 
+	 * @throws IOException the error of the last attempt if none succeeded
+	 */
+	public static Socket connect(String host, int port, int timeout)
+			throws IOException {
+		
+		List<InetAddress> addresses = sortAddresses(host,
+				DnsCache.lookup(host));
+		
+		if (addresses.size() == 1) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(addresses.get(0), port), timeout);
+			} catch (IOException e) {
+				closeQuietly(socket);
+				DnsCache.invalidate(host);
+				throw e;
+			}
+			return socket;
+		}
+		
+		BlockingQueue<Attempt> completed = new LinkedBlockingQueue<Attempt>();
+		List<Attempt> attempts = new ArrayList<Attempt>();
+		
+		Attempt winner = null;
+		IOException lastError = null;
+		int next = 0;
+		int pending = 0;
+		
+		try {
+			
+			while (winner == null) {
+				
+				if (next < addresses.size()) {
+					Attempt attempt = new Attempt(addresses.get(next++), port,
+							timeout, completed);
+					attempts.add(attempt);
+					attempt.start();
+					pending++;
+				} else if (pending == 0) {
+					break;
+				}
+				
+				// once every address has been tried each attempt ends by itself
+				// within its connect timeout
+				Attempt finished = next < addresses.size() ? completed.poll(
+						CONNECTION_ATTEMPT_DELAY, TimeUnit.MILLISECONDS)
+						: completed.take();
+				
+				if (finished != null) {
+					pending--;
+					
+					if (finished.mError == null) {
+						winner = finished;
+					} else {
+						lastError = finished.mError;
+						
+						if (DEBUG) {
+							Log.d(LOG_TAG, "Connection to " + host + " as "
+									+ finished.mAddress + " failed", lastError);
+						}
+					}
+				}
+				
+			}
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while connecting to " + host);
+		} finally {
+			for (Attempt attempt : attempts) {
+				if (attempt != winner) {
+					attempt.cancel();
+				}
+			}
+		}
+		
+		if (winner == null) {
+			// the server may have moved, look it up again next time
+			DnsCache.invalidate(host);
+			throw lastError;
+		}
+		
+		if (DEBUG) {
+			Log.d(LOG_TAG, "Connected to " + host + " as " + winner.mAddress);
+		}
+		
+		mPreferIpv6.put(host, winner.mAddress instanceof Inet6Address);
+		
+		return winner.mSocket;
+	}
+	
+	/**
+	 * Orders the addresses alternating the families, starting with the one
+	 * that won the last time or otherwise with the first one of the resolver.
+	 */
+	private static List<InetAddress> sortAddresses(String host,
+			InetAddress[] addresses) {
+		
+		LinkedList<InetAddress> ipv6 = new LinkedList<InetAddress>();
+		LinkedList<InetAddress> ipv4 = new LinkedList<InetAddress>();
+		
+		for (InetAddress address : addresses) {
+			if (address instanceof Inet6Address) {
+				ipv6.add(address);
+			} else {
+				ipv4.add(address);
+			}
+		}
+		
+		Boolean preferIpv6 = mPreferIpv6.get(host);
+		
+		if (preferIpv6 == null) {
+			preferIpv6 = addresses[0] instanceof Inet6Address;
+		}
+		
+		LinkedList<InetAddress> first = preferIpv6 ? ipv6 : ipv4;
+		LinkedList<InetAddress> second = preferIpv6 ? ipv4 : ipv6;
+		
+		List<InetAddress> sorted = new ArrayList<InetAddress>(addresses.length);
+		
+		while (!first.isEmpty() || !second.isEmpty()) {
+			if (!first.isEmpty()) sorted.add(first.removeFirst());
+			if (!second.isEmpty()) sorted.add(second.removeFirst());
+		}
+		
+		return sorted;
+	}
+	
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			/* we don't care about errors when closing */
+		}
+	}
+	
+	private static class Attempt extends Thread {
+		
+		private final InetAddress mAddress;
+		private final int mPort;
+		private final int mTimeout;
+		private final BlockingQueue<Attempt> mCompleted;
+		
+		private Socket mSocket;
+		private boolean mCancelled;
+		
+		private volatile IOException mError;
+		
+		public Attempt(InetAddress address, int port, int timeout,
+				BlockingQueue<Attempt> completed) {
+			super("Connect " + address);
+			setDaemon(true);
+			
+			mAddress = address;
+			mPort = port;
+			mTimeout = timeout;
+			mCompleted = completed;
+		}
+		
+		@Override
+		public void run() {
+			Socket socket = new Socket();
+			
+			synchronized (this) {
+				if (mCancelled) {
+					return;
+				}
+				mSocket = socket;
+			}
+			
+			try {
+				socket.connect(new InetSocketAddress(mAddress, mPort), mTimeout);
+			} catch (IOException e) {
+				mError = e;
+			} catch (RuntimeException e) {
+				mError = new IOException(e);
+			}
+			
+			mCompleted.add(this);
+		}
+		
+		/**
+		 * Stops the attempt, closing its socket even if it already connected.
+		 */
+		public synchronized void cancel() {
+			mCancelled = true;
+			if (mSocket != null) {
+				closeQuietly(mSocket);
+			}
+		}
+		
+	}
+	
+}
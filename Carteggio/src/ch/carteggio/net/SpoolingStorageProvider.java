@@ -0,0 +1,260 @@
+/*   
+ * Copyright (c) 2014, Lorenzo Keller
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ *    
+ */
+package ch.carteggio.net;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.james.mime4j.storage.AbstractStorageProvider;
+import org.apache.james.mime4j.storage.DefaultStorageProvider;
+import org.apache.james.mime4j.storage.Storage;
+import org.apache.james.mime4j.storage.StorageOutputStream;
+
+import android.util.Log;
+
+/**
+ * Stores message bodies and literals in memory as long as they are small and spools
+ * them to temporary files in a private directory once they grow over a threshold.
+ * 
+ * The spooled files are read back by mapping them in memory, so the data of large
+ * messages never needs to fit in the Java heap.
+ * 
+ * The provider is installed as the default mime4j {@link DefaultStorageProvider} by
+ * {@link #install(File)}, every {@link org.apache.james.mime4j.storage.StorageBodyFactory}
+ * created with the default constructor uses it.
+ * 
+ */
+public class SpoolingStorageProvider extends AbstractStorageProvider {
+
+	private static final String LOG_TAG = "SpoolingStorageProvider";
+	
+	/**
+	 * Data up to this size is kept in memory.
+	 */
+	public static final int DEFAULT_THRESHOLD = 32 * 1024;
+
+	private static final String FILE_PREFIX = "spool";
+	private static final String FILE_SUFFIX = ".tmp";
+	
+	private final File mDirectory;
+	private final int mThreshold;
+
+	public SpoolingStorageProvider(File directory, int threshold) {
+		mDirectory = directory;
+		mThreshold = threshold;
+	}
+
+	/**
+	 * Installs a provider that spools to the given directory as the mime4j default
+	 * and removes the files left there by a previous run of the application.
+	 */
+	public static void install(File directory) {
+		
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Log.w(LOG_TAG, "Cannot create spool directory " + directory);
+			return;
+		}
+		
+		File[] leftovers = directory.listFiles();
+		
+		if (leftovers != null) {
+			for (File file : leftovers) {
+				if (file.getName().startsWith(FILE_PREFIX)) {
+					file.delete();
+				}
+			}
+		}
+		
+		DefaultStorageProvider.setInstance(new SpoolingStorageProvider(directory, DEFAULT_THRESHOLD));
+	}
+	
+	@Override
+	public StorageOutputStream createStorageOutputStream() throws IOException {
+		return new SpoolingOutputStream();
+	}
+
+	private class SpoolingOutputStream extends StorageOutputStream {
+
+		private byte[] mHead = new byte[1024];
+		private int mHeadLength;
+		
+		private File mFile;
+		private OutputStream mFileStream;
+		
+		@Override
+		protected void write0(byte[] buffer, int offset, int length) throws IOException {
+			
+			if (mFileStream == null && mHeadLength + length > mThreshold) {
+				spool();
+			}
+			
+			if (mFileStream != null) {
+				mFileStream.write(buffer, offset, length);
+			} else {
+				if (mHeadLength + length > mHead.length) {
+					mHead = Arrays.copyOf(mHead, Math.min(mThreshold, 
+							Math.max(mHead.length * 2, mHeadLength + length)));
+				}
+				System.arraycopy(buffer, offset, mHead, mHeadLength, length);
+				mHeadLength += length;
+			}
+			
+		}
+
+		private void spool() throws IOException {
+			mFile = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, mDirectory);
+			mFileStream = new BufferedOutputStream(new FileOutputStream(mFile), 8192);
+			mFileStream.write(mHead, 0, mHeadLength);
+			mHead = null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			if (mFileStream != null) {
+				mFileStream.close();
+			}
+		}
+		
+		@Override
+		protected Storage toStorage0() throws IOException {
+			if (mFile != null) {
+				return new FileStorage(mFile);
+			} else {
+				return new MemoryStorage(mHead, mHeadLength);
+			}
+		}
+		
+	}
+	
+	private static class MemoryStorage implements Storage {
+		
+		private byte[] mData;
+		private final int mLength;
+		
+		public MemoryStorage(byte[] data, int length) {
+			mData = data;
+			mLength = length;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			if (mData == null) {
+				throw new IllegalStateException("storage has been deleted");
+			}
+			return new ByteArrayInputStream(mData, 0, mLength);
+		}
+
+		@Override
+		public void delete() {
+			mData = null;
+		}
+		
+	}
+	
+	private static class FileStorage implements Storage {
+		
+		private File mFile;
+		
+		public FileStorage(File file) {
+			mFile = file;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			if (mFile == null) {
+				throw new IllegalStateException("storage has been deleted");
+			}
+			
+			long length = mFile.length();
+			
+			if (length > Integer.MAX_VALUE) {
+				// too large to be mapped in a single buffer
+				return new FileInputStream(mFile);
+			}
+			
+			RandomAccessFile file = new RandomAccessFile(mFile, "r");
+			try {
+				return new MappedInputStream(file.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, 0, length));
+			} finally {
+				// the mapping stays valid after the file is closed
+				file.close();
+			}
+		}
+
+		@Override
+		public void delete() {
+			if (mFile != null) {
+				if (!mFile.delete()) {
+					Log.w(LOG_TAG, "Cannot delete spool file " + mFile);
+				}
+				mFile = null;
+			}
+		}
+		
+	}
+	
+	private static class MappedInputStream extends InputStream {
+		
+		private final ByteBuffer mBuffer;
+
+		public MappedInputStream(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			if (!mBuffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(length, mBuffer.remaining());
+			mBuffer.get(b, offset, count);
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+			mBuffer.position(mBuffer.position() + count);
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return mBuffer.remaining();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,417 @@
+/*   
+ * Copyright (c) 2014, Lorenzo Keller
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ *    
+ */
+package ch.carteggio.net.imap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.james.mime4j.dom.Entity;
+import org.apache.james.mime4j.dom.Multipart;
+import org.apache.james.mime4j.dom.field.ContentDispositionField;
+import org.apache.james.mime4j.field.Fields;
+import org.apache.james.mime4j.message.BodyPart;
+import org.apache.james.mime4j.message.HeaderImpl;
+import org.apache.james.mime4j.message.MultipartImpl;
+import org.apache.james.mime4j.storage.DefaultStorageProvider;
+import org.apache.james.mime4j.storage.Storage;
+import org.apache.james.mime4j.storage.StorageOutputStream;
+import org.apache.james.mime4j.stream.RawField;
+import org.apache.james.mime4j.util.MimeUtil;
+
+import android.util.Log;
+import ch.carteggio.net.FixedLengthInputStream;
+import ch.carteggio.net.MessagingException;
+import ch.carteggio.net.imap.parsing.BodyStructureNode;
+import ch.carteggio.net.imap.parsing.IImapFetchCallback;
+import ch.carteggio.net.imap.parsing.ImapKeywords;
+import ch.carteggio.net.imap.parsing.ImapList;
+import ch.carteggio.net.imap.parsing.ImapResponseParser;
+
+/**
+ * 
+ * Fills {@link ImapMessage} objects with the attributes of FETCH responses as they
+ * are parsed.
+ * 
+ * The handler looks up the message using the UID attribute. The server can report
+ * the attributes in any order, the ones that arrive before the UID are kept (body
+ * literals in a {@link Storage}) and applied once the UID is known. Attributes of 
+ * messages we didn't ask for are ignored. {@link ImapSession#fetch} requests the UID
+ * as first attribute, so usually nothing needs to be kept.
+ * 
+ */
+class FetchMessageHandler implements IImapFetchCallback {
+
+	private final Map<Long, ImapMessage> mMessageMap;
+	private final Set<Flag> mPermanentFlagsIndex;
+	private final MessageRetrievalListener mListener;
+	private final String mLogId;
+
+	private ImapMessage mMessage;
+	private long mUid;
+	private int mMessageNumber;
+	
+	/*
+	 * Parts of the body structure reported so far that have not yet been
+	 * attached to their multipart parent.
+	 */
+	private ArrayList<Entity> mParts = new ArrayList<Entity>();
+	private MessagingException mStructureError;
+	
+	private MessagingException mError;
+	
+	/*
+	 * Attributes reported before the UID of the current response.
+	 */
+	private ArrayList<String> mPendingFlags = new ArrayList<String>();
+	private String mPendingInternalDate;
+	private long mPendingSize = -1;
+	private ArrayList<BodyStructureNode> mPendingNodes = new ArrayList<BodyStructureNode>();
+	private ArrayList<Storage> mPendingLiterals = new ArrayList<Storage>();
+	
+	public FetchMessageHandler(Map<Long, ImapMessage> messageMap,
+			Set<Flag> permanentFlagsIndex, MessageRetrievalListener listener, String logId) {
+		mMessageMap = messageMap;
+		mPermanentFlagsIndex = permanentFlagsIndex;
+		mListener = listener;
+		mLogId = logId;
+	}
+
+	/**
+	 * Returns the message filled by the last FETCH response or null if the 
+	 * response was for a message we didn't ask for.
+	 */
+	public ImapMessage getMessage() {
+		return mMessage;
+	}
+	
+	public long getUid() {
+		return mUid;
+	}
+	
+	/**
+	 * Throws the error found while handling the last FETCH response, if any.
+	 */
+	public void checkError() throws MessagingException {
+		MessagingException error = mError;
+		mError = null;
+		if (error != null) {
+			throw error;
+		}
+	}
+	
+	@Override
+	public void onFetchStart(long messageNumber) {
+		mMessage = null;
+		mUid = -1;
+		mParts.clear();
+		mStructureError = null;
+		releasePending();
+	}
+
+	@Override
+	public void onUid(long uid) throws Exception {
+		mUid = uid;
+		mMessage = mMessageMap.get(uid);
+		
+		if (mMessage != null && mListener != null) {
+			mListener.messageStarted(uid, mMessageNumber++, mMessageMap.size());
+		}
+		
+		applyPending();
+	}
+
+	@Override
+	public void onFlag(String flag) throws MessagingException {
+		if (mUid == -1) {
+			mPendingFlags.add(flag);
+			return;
+		}
+		
+		if (mMessage == null) {
+			return;
+		}
+		
+		if (ImapResponseParser.equalsIgnoreCase(flag, ImapKeywords.FLAG_DELETED)) {
+			mMessage.setFlagInternal(Flag.DELETED, true);
+		} else if (ImapResponseParser.equalsIgnoreCase(flag, ImapKeywords.FLAG_ANSWERED)) {
+			mMessage.setFlagInternal(Flag.ANSWERED, true);
+		} else if (ImapResponseParser.equalsIgnoreCase(flag, ImapKeywords.FLAG_SEEN)) {
+			mMessage.setFlagInternal(Flag.SEEN, true);
+		} else if (ImapResponseParser.equalsIgnoreCase(flag, ImapKeywords.FLAG_FLAGGED)) {
+			mMessage.setFlagInternal(Flag.FLAGGED, true);
+		} else if (ImapResponseParser.equalsIgnoreCase(flag, ImapKeywords.FLAG_FORWARDED)) {
+			mMessage.setFlagInternal(Flag.FORWARDED, true);
+			/*
+			 * a message contains FORWARDED FLAG -> so we can also
+			 * create them
+			 */
+			mPermanentFlagsIndex.add(Flag.FORWARDED);
+		}
+	}
+
+	@Override
+	public void onInternalDate(String internalDate) {
+		if (mUid == -1) {
+			mPendingInternalDate = internalDate;
+			return;
+		}
+		
+		if (mMessage == null) {
+			return;
+		}
+		
+		try {
+			mMessage.setInternalDate(ImapList.getDate(internalDate));
+		} catch (MessagingException e) {
+			mError = e;
+		}
+	}
+
+	@Override
+	public void onSize(long size) {
+		if (mUid == -1) {
+			mPendingSize = size;
+		} else if (mMessage != null) {
+			mMessage.setSize(size);
+		}
+	}
+
+	@Override
+	public void onBodyStructureNode(BodyStructureNode node) {
+		if (mUid == -1) {
+			mPendingNodes.add(node);
+			return;
+		}
+		
+		if (mMessage == null) {
+			return;
+		}
+		
+		try {
+			if (mStructureError == null) {
+				if (node.mMultipart) {
+					addMultipart(node);
+				} else {
+					addBody(node);
+				}
+			}
+		} catch (MessagingException e) {
+			mStructureError = e;
+		}
+		
+		if (node.isRoot() && mStructureError != null) {
+			if (ImapStore.DEBUG)
+				Log.d(ImapStore.LOG_TAG, "Error handling message for "
+						+ mLogId, mStructureError);
+			mMessage.setBody(null);
+		}
+	}
+
+	@Override
+	public void onLiteral(String section, FixedLengthInputStream literal) throws Exception {
+		if (mUid == -1) {
+			StorageOutputStream out = DefaultStorageProvider.getInstance().createStorageOutputStream();
+			literal.copyRemaining(out);
+			mPendingLiterals.add(out.toStorage());
+		} else if (mMessage != null) {
+			mMessage.parse(literal);
+		}
+	}
+
+	@Override
+	public void onFetchEnd() {
+		// a response without UID, what was kept can't be used
+		releasePending();
+		
+		if (mMessage != null && mListener != null) {
+			mListener.messageFinished(mMessage, mMessageNumber, mMessageMap.size());
+		}
+	}
+	
+	/**
+	 * Applies the attributes that were reported before the UID.
+	 */
+	private void applyPending() throws Exception {
+		try {
+			for (String flag : mPendingFlags) {
+				onFlag(flag);
+			}
+			
+			if (mPendingInternalDate != null) {
+				onInternalDate(mPendingInternalDate);
+			}
+			
+			if (mPendingSize != -1) {
+				onSize(mPendingSize);
+			}
+			
+			for (BodyStructureNode node : mPendingNodes) {
+				onBodyStructureNode(node);
+			}
+			
+			if (mMessage != null) {
+				for (Storage literal : mPendingLiterals) {
+					mMessage.parse(literal.getInputStream());
+				}
+			}
+		} finally {
+			releasePending();
+		}
+	}
+	
+	private void releasePending() {
+		for (Storage literal : mPendingLiterals) {
+			literal.delete();
+		}
+		
+		mPendingLiterals.clear();
+		mPendingFlags.clear();
+		mPendingNodes.clear();
+		mPendingInternalDate = null;
+		mPendingSize = -1;
+	}
+	
+	private void addMultipart(BodyStructureNode node) {
+		
+		int first = mParts.size() - node.mChildCount;
+		List<Entity> children = mParts.subList(first, mParts.size());
+		
+		Entity part = node.isRoot() ? mMessage : new BodyPart();
+
+		if (node.mSubType != null) {
+			
+			Multipart mp = new MultipartImpl(node.mSubType.toLowerCase(Locale.US));
+			
+			for (Entity child : children) {
+				mp.addBodyPart(child);
+			}
+	
+			if (part.getBody() != null) {
+				part.removeBody().dispose();
+			}
+	
+			part.setBody(mp);
+		}
+		
+		children.clear();
+		
+		if (!node.isRoot()) {
+			mParts.add(part);
+		}
+	}
+
+	private void addBody(BodyStructureNode node) throws MessagingException {
+		
+		/*
+		 * This is a body. We need to add as much information as we can find
+		 * out about it to the Part.
+		 */
+		
+		String mimeType = (node.mType + "/" + node.mSubType).toLowerCase(Locale.US);
+
+		if (MimeUtil.isSameMimeType(mimeType, "message/rfc822")) {
+			/*
+			 * This will be caught by onBodyStructureNode and handled appropriately.
+			 */
+			throw new MessagingException(
+					"BODYSTRUCTURE message/rfc822 not yet supported.");
+		}
+		
+		Entity part = node.isRoot() ? mMessage : new BodyPart();
+
+		/*
+		 * Set the content type with as much information as we know right
+		 * now.
+		 */
+		StringBuilder contentType = new StringBuilder();
+		contentType.append(mimeType);
+
+		if (node.mParameters != null) {
+			/*
+			 * If there are body params we might be able to get some more
+			 * information out of them.
+			 */
+			for (int i = 0, count = node.mParameters.size(); i + 1 < count; i += 2) {
+				contentType.append(String.format(";\r\n %s=\"%s\"",
+						node.mParameters.get(i),
+						node.mParameters.get(i + 1)));
+			}
+		}
+
+		if (part.getHeader() == null)
+			part.setHeader(new HeaderImpl());
+
+		part.getHeader().addField(
+				Fields.contentType(contentType.toString()));
+
+		StringBuilder contentDisposition = new StringBuilder();
+
+		if (node.mDisposition != null) {
+			if (!"NIL".equalsIgnoreCase(node.mDisposition)) {
+				contentDisposition.append(node.mDisposition.toLowerCase(Locale.US));
+			}
+
+			if (node.mDispositionParameters != null) {
+				/*
+				 * If there is body disposition information we can pull some
+				 * more information about the attachment out.
+				 */
+				for (int i = 0, count = node.mDispositionParameters.size(); i + 1 < count; i += 2) {
+					contentDisposition.append(String.format(
+							";\r\n %s=\"%s\"", node.mDispositionParameters
+									.get(i).toLowerCase(Locale.US),
+							node.mDispositionParameters.get(i + 1)));
+				}
+			}
+		}
+
+		ContentDispositionField contentDispositionField = Fields
+				.contentDisposition(contentDisposition.toString());
+
+		if (contentDispositionField
+				.getParameter(ContentDispositionField.PARAM_SIZE) == null) {
+			contentDisposition.append(String.format(Locale.US,
+					";\r\n size=%d", node.mSize));
+			contentDispositionField = Fields
+					.contentDisposition(contentDisposition.toString());
+		}
+
+		/*
+		 * Set the content disposition containing at least the size.
+		 * Attachment handling code will use this down the road.
+		 */
+		part.getHeader().addField(contentDispositionField);
+
+		/*
+		 * Set the Content-Transfer-Encoding header. Attachment code will
+		 * use this to parse the body.
+		 */
+		part.getHeader().addField(Fields.contentTransferEncoding(node.mEncoding));
+
+		part.getHeader()
+				.addField(
+						new RawField(
+								ImapStore.HEADER_ANDROID_ATTACHMENT_STORE_DATA,
+								node.mPartId));
+
+		if (!node.isRoot()) {
+			mParts.add(part);
+		}
+	}
+
+}
@@ -16,19 +16,13 @@
  */
 package ch.carteggio.net.imap;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.ConnectException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
-import java.security.Security;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -38,22 +32,27 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
-import javax.net.ssl.TrustManager;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 import ch.carteggio.net.MessagingException;
 import ch.carteggio.net.PeekableInputStream;
+import ch.carteggio.net.SocketConnector;
+import ch.carteggio.net.imap.parsing.IImapFetchCallback;
 import ch.carteggio.net.imap.parsing.IImapResponseCallback;
+import ch.carteggio.net.imap.parsing.ImapKeywords;
 import ch.carteggio.net.imap.parsing.ImapList;
 import ch.carteggio.net.imap.parsing.ImapResponse;
 import ch.carteggio.net.imap.parsing.ImapResponseParser;
@@ -62,7 +61,6 @@ import ch.carteggio.net.security.Authentication;
 import ch.carteggio.net.security.AuthenticationFailedException;
 import ch.carteggio.net.security.CertificateValidationException;
 import ch.carteggio.net.security.ConnectionSecurity;
-import ch.carteggio.net.security.TrustManagerFactory;
 import ch.carteggio.net.security.TrustedSocketFactory;
 import ch.carteggio.net.smtp.EOLConvertingOutputStream;
 
@@ -76,11 +74,61 @@ class ImapConnection {
 	private OutputStream mOut;
 	private ImapResponseParser mParser;
 	private int mNextCommandTag;
+	
+	/**
+	 * Commands that have been sent and whose tagged response hasn't been read yet,
+	 * oldest first.
+	 */
+	private LinkedList<PendingCommand> mPendingCommands = new LinkedList<PendingCommand>();
 	private Set<String> mCapabilities = new HashSet<String>();
 	private Context mContext;
 
 	private ImapServerSettings mSettings;
 
+	/*
+	 * The streams of the COMPRESS=DEFLATE layer, null if the connection isn't
+	 * compressed.
+	 */
+	private Inflater mInflater;
+	private Deflater mDeflater;
+	
+	/*
+	 * What the compressed streams of the previous sessions of this
+	 * connection transferred.
+	 */
+	private long mPastCompressedBytes;
+	private long mPastUncompressedBytes;
+
+	/**
+	 * When the last response was received, from {@link SystemClock#elapsedRealtime()}.
+	 */
+	private long mLastActivity;
+
+	/*
+	 * Set when the connection is taken from the pool and reset by the first
+	 * response, until then the server may have dropped it while it was idle.
+	 */
+	private boolean mReused;
+
+	/*
+	 * Set when the server confirms with an untagged ENABLED response that
+	 * QRESYNC is enabled.
+	 */
+	private volatile boolean mQresyncEnabled;
+
+	/*
+	 * The ENABLE QRESYNC command sent on this connection, if any.
+	 */
+	private PendingCommand mQresyncEnable;
+
+	/*
+	 * An authentication sent together with the following commands whose
+	 * result hasn't been checked yet.
+	 */
+	private PendingCommand mPendingAuthentication;
+	
+	private boolean mCapabilitiesReceived;
+
 	public ImapConnection(Context context, final ImapServerSettings settings) {
 		this.mSettings = settings;
 		this.mContext = context;
@@ -95,7 +143,7 @@ class ImapConnection {
 			ImapList capabilityList = null;
 			if (!response.isEmpty()
 					&& ImapResponseParser.equalsIgnoreCase(response.get(0),
-							"OK")) {
+							ImapKeywords.OK)) {
 				for (Object thisPart : response) {
 					if (thisPart instanceof ImapList) {
 						ImapList thisList = (ImapList) thisPart;
@@ -120,6 +168,8 @@ class ImapConnection {
 					Log.d(ImapStore.LOG_TAG, "Saving " + capabilityList.size()
 							+ " capabilities for " + getLogId());
 				}
+				// the last list announced replaces the previous ones
+				mCapabilities.clear();
 				for (Object capability : capabilityList) {
 					if (capability instanceof String) {
 						// if (DEBUG)
@@ -129,6 +179,7 @@ class ImapConnection {
 						// }
 						mCapabilities.add(((String) capability)
 								.toUpperCase(Locale.US));
+						mCapabilitiesReceived = true;
 					}
 				}
 			}
@@ -144,65 +195,32 @@ class ImapConnection {
 		boolean authSuccess = false;
 
 		mNextCommandTag = 1;
-		try {
-			Security.setProperty("networkaddress.cache.ttl", "0");
-		} catch (Exception e) {
-			Log.w(ImapStore.LOG_TAG, "Could not set DNS ttl to 0 for "
-					+ getLogId(), e);
-		}
-
-		try {
-			Security.setProperty("networkaddress.cache.negative.ttl", "0");
-		} catch (Exception e) {
-			Log.w(ImapStore.LOG_TAG, "Could not set DNS negative ttl to 0 for "
-					+ getLogId(), e);
-		}
 
 		try {
 			ConnectionSecurity connectionSecurity = mSettings.mConnectionSecurity;
 
-			// Try all IPv4 and IPv6 addresses of the host
-			InetAddress[] addresses = InetAddress.getAllByName(mSettings.mHost);
-			for (int i = 0; i < addresses.length; i++) {
-				try {
-					if (ImapStore.DEBUG && ImapStore.DEBUG_PROTOCOL_IMAP) {
-						Log.d(ImapStore.LOG_TAG, "Connecting to "
-								+ mSettings.mHost + " as " + addresses[i]);
-					}
-
-					SocketAddress socketAddress = new InetSocketAddress(
-							addresses[i], mSettings.mPort);
-
-					if (connectionSecurity == ConnectionSecurity.SSL_TLS_REQUIRED) {
-						SSLContext sslContext = SSLContext.getInstance("TLS");
-						sslContext.init(null,
-								new TrustManager[] { TrustManagerFactory.get(
-										mSettings.mHost, mSettings.mPort) },
-								new SecureRandom());
-						mSocket = TrustedSocketFactory.createSocket(sslContext);
-					} else {
-						mSocket = new Socket();
-					}
-
-					mSocket.connect(socketAddress,
-							ImapStore.SOCKET_CONNECT_TIMEOUT);
+			if (ImapStore.DEBUG && ImapStore.DEBUG_PROTOCOL_IMAP) {
+				Log.d(ImapStore.LOG_TAG, "Connecting to " + mSettings.mHost
+						+ " for " + getLogId());
+			}
 
-					// Successfully connected to the server; don't try any other
-					// addresses
-					break;
-				} catch (SocketException e) {
-					if (i < (addresses.length - 1)) {
-						// There are still other addresses for that host to try
-						continue;
-					}
-					throw new MessagingException("Cannot connect to host", e);
-				}
+			// Race the IPv4 and IPv6 addresses of the host
+			try {
+				mSocket = SocketConnector.connect(mSettings.mHost,
+						mSettings.mPort, ImapStore.SOCKET_CONNECT_TIMEOUT);
+			} catch (SocketException e) {
+				throw new MessagingException("Cannot connect to host", e);
 			}
 
 			setReadTimeout(ImapStore.SOCKET_READ_TIMEOUT);
 
-			mIn = new PeekableInputStream(new BufferedInputStream(
-					mSocket.getInputStream(), 1024));
+			if (connectionSecurity == ConnectionSecurity.SSL_TLS_REQUIRED) {
+				mSocket = TrustedSocketFactory.createSocket(mSocket,
+						mSettings.mHost, mSettings.mPort, connectionSecurity);
+			}
+
+			mIn = new PeekableInputStream(mSocket.getInputStream(),
+					ImapStore.READ_BUFFER_SIZE);
 			mParser = new ImapResponseParser(mIn);
 			mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
 
@@ -215,34 +233,25 @@ class ImapConnection {
 			nullResponses.add(nullResponse);
 			receiveCapabilities(nullResponses);
 
-			if (!hasCapability(ImapStore.CAPABILITY_CAPABILITY)) {
-				if (ImapStore.DEBUG)
-					Log.i(ImapStore.LOG_TAG,
-							"Did not get capabilities in banner, requesting CAPABILITY for "
-									+ getLogId());
-				List<ImapResponse> responses = receiveCapabilities(executeSimpleCommand(ImapStore.COMMAND_CAPABILITY));
-				if (responses.size() != 2) {
-					throw new MessagingException(
-							"Invalid CAPABILITY response received");
-				}
-			}
-
 			if (mSettings.mConnectionSecurity == ConnectionSecurity.STARTTLS_REQUIRED) {
 
-				if (hasCapability("STARTTLS")) {
+				// with cached capabilities STARTTLS is just tried, a server
+				// that doesn't support it fails the command
+				if (!hasCapability(ImapStore.CAPABILITY_CAPABILITY)
+						&& mSettings.mCapabilitiesBeforeAuth == null) {
+					requestCapabilities();
+				}
+
+				if (hasCapability("STARTTLS")
+						|| mSettings.mCapabilitiesBeforeAuth != null) {
 					// STARTTLS
 					executeSimpleCommand("STARTTLS");
 
-					SSLContext sslContext = SSLContext.getInstance("TLS");
-					sslContext.init(null,
-							new TrustManager[] { TrustManagerFactory.get(
-									mSettings.mHost, mSettings.mPort) },
-							new SecureRandom());
-					mSocket = TrustedSocketFactory.createSocket(sslContext,
-							mSocket, mSettings.mHost, mSettings.mPort, true);
+					mSocket = TrustedSocketFactory.createSocket(mSocket,
+							mSettings.mHost, mSettings.mPort, connectionSecurity);
 					mSocket.setSoTimeout(ImapStore.SOCKET_READ_TIMEOUT);
-					mIn = new PeekableInputStream(new BufferedInputStream(
-							mSocket.getInputStream(), 1024));
+					mIn = new PeekableInputStream(mSocket.getInputStream(),
+							ImapStore.READ_BUFFER_SIZE);
 					mParser = new ImapResponseParser(mIn);
 					mOut = new BufferedOutputStream(mSocket.getOutputStream(),
 							1024);
@@ -253,11 +262,6 @@ class ImapConnection {
 								"Updating capabilities after STARTTLS for "
 										+ getLogId());
 					mCapabilities.clear();
-					List<ImapResponse> responses = receiveCapabilities(executeSimpleCommand(ImapStore.COMMAND_CAPABILITY));
-					if (responses.size() != 2) {
-						throw new MessagingException(
-								"Invalid CAPABILITY response received");
-					}
 				} else {
 					/*
 					 * This exception triggers a "Certificate error"
@@ -272,153 +276,56 @@ class ImapConnection {
 				}
 			}
 
-			switch (mSettings.mAuthType) {
-			case CRAM_MD5:
-				if (hasCapability(ImapStore.CAPABILITY_AUTH_CRAM_MD5)) {
-					authCramMD5();
+			if (!hasCapability(ImapStore.CAPABILITY_CAPABILITY)) {
+				if (mSettings.mCapabilitiesBeforeAuth != null) {
+					mCapabilities.addAll(mSettings.mCapabilitiesBeforeAuth);
 				} else {
-					throw new MessagingException(
-							"Server doesn't support encrypted passwords using CRAM-MD5.");
+					requestCapabilities();
 				}
-				break;
-
-			case PLAIN:
-				if (hasCapability(ImapStore.CAPABILITY_AUTH_PLAIN)) {
-					saslAuthPlain();
-				} else if (!hasCapability(ImapStore.CAPABILITY_LOGINDISABLED)) {
-					login();
-				} else {
-					throw new MessagingException(
-							"Server doesn't support unencrypted passwords using AUTH=PLAIN and LOGIN is disabled.");
-				}
-				break;
-
-			default:
-				throw new MessagingException(
-						"Unhandled authentication method found in the server settings (bug).");
 			}
+			
+			mSettings.mCapabilitiesBeforeAuth = new HashSet<String>(mCapabilities);
+
+			if (canAuthenticateLater()) {
+				/*
+				 * Everything the handshake would discover after the
+				 * authentication is known from the previous connections: the
+				 * authentication is sent together with the first command and
+				 * checked when the responses are read.
+				 */
+				mCapabilities.clear();
+				mCapabilities.addAll(mSettings.mCapabilitiesAfterAuth);
+				mPendingAuthentication = sendPipelinedCommand(
+						getSaslPlainCommand(), true, null);
+				authSuccess = true;
+				return;
+			}
+			
+			authenticate();
+			
 			authSuccess = true;
 			if (ImapStore.DEBUG) {
 				Log.d(ImapStore.LOG_TAG, ImapStore.CAPABILITY_COMPRESS_DEFLATE
 						+ " = "
 						+ hasCapability(ImapStore.CAPABILITY_COMPRESS_DEFLATE));
 			}
-			if (hasCapability(ImapStore.CAPABILITY_COMPRESS_DEFLATE)) {
-				ConnectivityManager connectivityManager = (ConnectivityManager) mContext
-						.getSystemService(Context.CONNECTIVITY_SERVICE);
-				boolean useCompression = true;
-
-				NetworkInfo netInfo = connectivityManager
-						.getActiveNetworkInfo();
-				if (netInfo != null) {
-					int type = netInfo.getType();
-					if (ImapStore.DEBUG)
-						Log.d(ImapStore.LOG_TAG, "On network type " + type);
-					useCompression = mSettings.useCompression(type);
-
-				}
-				if (ImapStore.DEBUG)
-					Log.d(ImapStore.LOG_TAG, "useCompression " + useCompression);
-				if (useCompression) {
-					try {
-						executeSimpleCommand(ImapStore.COMMAND_COMPRESS_DEFLATE);
-						Inflater inf = new Inflater(true);
-						InflaterInputStream zInputStream = new InflaterInputStream(
-								mSocket.getInputStream(), inf);
-						mIn = new PeekableInputStream(new BufferedInputStream(
-								zInputStream, 1024));
-						mParser = new ImapResponseParser(mIn);
-						GZIPOutputStream zOutputStream = new GZIPOutputStream(
-								mSocket.getOutputStream());
-						mOut = new BufferedOutputStream(zOutputStream, 1024);
-						if (ImapStore.DEBUG) {
-							Log.i(ImapStore.LOG_TAG, "Compression enabled for "
-									+ getLogId());
-						}
-					} catch (Exception e) {
-						Log.e(ImapStore.LOG_TAG,
-								"Unable to negotiate compression", e);
-					}
-				}
-			}
-
-			if (ImapStore.DEBUG)
-				Log.d(ImapStore.LOG_TAG, "NAMESPACE = "
-						+ hasCapability(ImapStore.CAPABILITY_NAMESPACE)
-						+ ", mPathPrefix = " + mSettings.mPathPrefix);
-
-			if (mSettings.mPathPrefix == null) {
-				if (hasCapability(ImapStore.CAPABILITY_NAMESPACE)) {
-					if (ImapStore.DEBUG)
-						Log.i(ImapStore.LOG_TAG,
-								"mPathPrefix is unset and server has NAMESPACE capability");
-					List<ImapResponse> namespaceResponses = executeSimpleCommand(ImapStore.COMMAND_NAMESPACE);
-					for (ImapResponse response : namespaceResponses) {
-						if (ImapResponseParser.equalsIgnoreCase(
-								response.get(0), ImapStore.COMMAND_NAMESPACE)) {
-							if (ImapStore.DEBUG)
-								Log.d(ImapStore.LOG_TAG,
-										"Got NAMESPACE response " + response
-												+ " on " + getLogId());
-
-							Object personalNamespaces = response.get(1);
-							if (personalNamespaces != null
-									&& personalNamespaces instanceof ImapList) {
-								if (ImapStore.DEBUG)
-									Log.d(ImapStore.LOG_TAG,
-											"Got personal namespaces: "
-													+ personalNamespaces);
-								ImapList bracketed = (ImapList) personalNamespaces;
-								Object firstNamespace = bracketed.get(0);
-								if (firstNamespace != null
-										&& firstNamespace instanceof ImapList) {
-									if (ImapStore.DEBUG)
-										Log.d(ImapStore.LOG_TAG,
-												"Got first personal namespaces: "
-														+ firstNamespace);
-									bracketed = (ImapList) firstNamespace;
-									mSettings.mPathPrefix = bracketed
-											.getString(0);
-									mSettings.mPathDelimeter = bracketed
-											.getString(1);
-									mSettings.mCombinedPrefix = null;
-									if (ImapStore.DEBUG)
-										Log.d(ImapStore.LOG_TAG, "Got path '"
-												+ mSettings.mPathPrefix
-												+ "' and separator '"
-												+ mSettings.mPathDelimeter
-												+ "'");
-								}
-							}
-						}
-					}
-				} else {
-					if (ImapStore.DEBUG)
-						Log.i(ImapStore.LOG_TAG,
-								"mPathPrefix is unset but server does not have NAMESPACE capability");
-					mSettings.mPathPrefix = "";
-				}
-			}
-			if (mSettings.mPathDelimeter == null) {
+			if (hasCapability(ImapStore.CAPABILITY_COMPRESS_DEFLATE)
+					&& isCompressionWanted()) {
 				try {
-					List<ImapResponse> nameResponses = executeSimpleCommand("LIST \"\" \"\"");
-					for (ImapResponse response : nameResponses) {
-						if (ImapResponseParser.equalsIgnoreCase(
-								response.get(0), "LIST")) {
-							mSettings.mPathDelimeter = response.getString(2);
-							mSettings.mCombinedPrefix = null;
-							if (ImapStore.DEBUG)
-								Log.d(ImapStore.LOG_TAG, "Got path delimeter '"
-										+ mSettings.mPathDelimeter + "' for "
-										+ getLogId());
-						}
+					executeSimpleCommand(ImapStore.COMMAND_COMPRESS_DEFLATE);
+					enableCompression();
+					if (ImapStore.DEBUG) {
+						Log.i(ImapStore.LOG_TAG, "Compression enabled for "
+								+ getLogId());
 					}
 				} catch (Exception e) {
 					Log.e(ImapStore.LOG_TAG,
-							"Unable to get path delimeter using LIST", e);
+							"Unable to negotiate compression", e);
 				}
 			}
 
+			discoverNamespace();
+
 		} catch (SSLException e) {
 			throw new CertificateValidationException(e.getMessage(), e);
 		} catch (GeneralSecurityException gse) {
@@ -440,11 +347,256 @@ class ImapConnection {
 			if (!authSuccess) {
 				Log.e(ImapStore.LOG_TAG,
 						"Failed to login, closing connection for " + getLogId());
+				// the server may have changed, the next time everything is
+				// discovered again
+				mSettings.clearCachedCapabilities();
 				close();
 			}
 		}
 	}
 
+	/**
+	 * Asks the server for its capabilities when it didn't tell them.
+	 */
+	private void requestCapabilities() throws IOException, MessagingException {
+		if (ImapStore.DEBUG)
+			Log.i(ImapStore.LOG_TAG,
+					"Did not get capabilities, requesting CAPABILITY for "
+							+ getLogId());
+		List<ImapResponse> responses = receiveCapabilities(executeSimpleCommand(ImapStore.COMMAND_CAPABILITY));
+		if (responses.size() != 2) {
+			throw new MessagingException(
+					"Invalid CAPABILITY response received");
+		}
+	}
+
+	/**
+	 * Returns true if the authentication doesn't need to be completed before
+	 * the next command is sent, because the capabilities after the
+	 * authentication, the namespace and the delimiter are known from the
+	 * previous connections and the authentication is a single command.
+	 * Compressed connections are excluded, since the commands after COMPRESS
+	 * can be sent only after its response.
+	 */
+	private boolean canAuthenticateLater() {
+		Set<String> capabilities = mSettings.mCapabilitiesAfterAuth;
+		
+		if (capabilities == null || mSettings.mPathPrefix == null
+				|| mSettings.mPathDelimeter == null) {
+			return false;
+		}
+		
+		if (mSettings.mAuthType != AuthType.PLAIN
+				|| !hasCapability(ImapStore.CAPABILITY_AUTH_PLAIN)
+				|| !hasCapability(ImapStore.CAPABILITY_SASL_IR)) {
+			return false;
+		}
+		
+		return !capabilities.contains(ImapStore.CAPABILITY_COMPRESS_DEFLATE)
+				|| !isCompressionWanted();
+	}
+	
+	private void authenticate() throws IOException, MessagingException {
+		
+		mCapabilitiesReceived = false;
+		
+		switch (mSettings.mAuthType) {
+		case CRAM_MD5:
+			if (hasCapability(ImapStore.CAPABILITY_AUTH_CRAM_MD5)) {
+				authCramMD5();
+			} else {
+				throw new MessagingException(
+						"Server doesn't support encrypted passwords using CRAM-MD5.");
+			}
+			break;
+
+		case PLAIN:
+			if (hasCapability(ImapStore.CAPABILITY_AUTH_PLAIN)) {
+				if (hasCapability(ImapStore.CAPABILITY_SASL_IR)) {
+					saslAuthPlainInitialResponse();
+				} else {
+					saslAuthPlain();
+				}
+			} else if (!hasCapability(ImapStore.CAPABILITY_LOGINDISABLED)) {
+				login();
+			} else {
+				throw new MessagingException(
+						"Server doesn't support unencrypted passwords using AUTH=PLAIN and LOGIN is disabled.");
+			}
+			break;
+
+		default:
+			throw new MessagingException(
+					"Unhandled authentication method found in the server settings (bug).");
+		}
+		
+		// servers that don't tell their capabilities after the authentication
+		// usually keep the ones they announced before
+		if (!mCapabilitiesReceived && mSettings.mCapabilitiesAfterAuth != null) {
+			mCapabilities.clear();
+			mCapabilities.addAll(mSettings.mCapabilitiesAfterAuth);
+		}
+		
+		mSettings.mCapabilitiesAfterAuth = new HashSet<String>(mCapabilities);
+	}
+	
+	protected void saslAuthPlainInitialResponse() throws IOException, MessagingException {
+		try {
+			receiveCapabilities(executeSimpleCommand(getSaslPlainCommand(), true));
+		} catch (MessagingException e) {
+			throw new AuthenticationFailedException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns AUTHENTICATE PLAIN with the initial response (RFC 4959), which
+	 * saves the round trip of the continuation.
+	 */
+	private String getSaslPlainCommand() {
+		return "AUTHENTICATE PLAIN " + new String(Base64.encode(
+				("\000" + mSettings.mUsername + "\000" + mSettings.mPassword)
+						.getBytes(), Base64.NO_WRAP));
+	}
+	
+	/**
+	 * Checks the result of an authentication sent together with the following
+	 * commands, see {@link #canAuthenticateLater()}.
+	 */
+	private void checkPendingAuthentication() throws IOException, MessagingException {
+		PendingCommand authentication = mPendingAuthentication;
+		mPendingAuthentication = null;
+		
+		try {
+			mCapabilitiesReceived = false;
+			receiveCapabilities(authentication.get());
+		} catch (ImapException e) {
+			mSettings.clearCachedCapabilities();
+			close();
+			throw new AuthenticationFailedException(e.getMessage());
+		}
+	}
+	
+	/**
+	 * Returns true if compression is wanted on the current network.
+	 */
+	private boolean isCompressionWanted() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+			return false;
+		}
+		
+		ConnectivityManager connectivityManager = (ConnectivityManager) mContext
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+		boolean useCompression = true;
+
+		NetworkInfo netInfo = connectivityManager
+				.getActiveNetworkInfo();
+		if (netInfo != null) {
+			int type = netInfo.getType();
+			if (ImapStore.DEBUG)
+				Log.d(ImapStore.LOG_TAG, "On network type " + type);
+			useCompression = mSettings.useCompression(type);
+
+		}
+		if (ImapStore.DEBUG)
+			Log.d(ImapStore.LOG_TAG, "useCompression " + useCompression);
+		
+		return useCompression;
+	}
+
+	private void discoverNamespace() throws IOException, MessagingException {
+		if (ImapStore.DEBUG)
+			Log.d(ImapStore.LOG_TAG, "NAMESPACE = "
+					+ hasCapability(ImapStore.CAPABILITY_NAMESPACE)
+					+ ", mPathPrefix = " + mSettings.mPathPrefix);
+
+		/*
+		 * The namespace and the delimiter are discovered in one round trip,
+		 * the delimiter is taken from LIST only if NAMESPACE doesn't tell it.
+		 */
+		PendingCommand namespaceCommand = null;
+		if (mSettings.mPathPrefix == null
+				&& hasCapability(ImapStore.CAPABILITY_NAMESPACE)) {
+			namespaceCommand = sendPipelinedCommand(ImapStore.COMMAND_NAMESPACE,
+					false, null);
+		}
+		PendingCommand listCommand = null;
+		if (mSettings.mPathDelimeter == null) {
+			listCommand = sendPipelinedCommand("LIST \"\" \"\"", false, null);
+		}
+
+		if (mSettings.mPathPrefix == null) {
+			if (namespaceCommand != null) {
+				if (ImapStore.DEBUG)
+					Log.i(ImapStore.LOG_TAG,
+							"mPathPrefix is unset and server has NAMESPACE capability");
+				List<ImapResponse> namespaceResponses = namespaceCommand.get();
+				for (ImapResponse response : namespaceResponses) {
+					if (ImapResponseParser.equalsIgnoreCase(
+							response.get(0), ImapStore.COMMAND_NAMESPACE)) {
+						if (ImapStore.DEBUG)
+							Log.d(ImapStore.LOG_TAG,
+									"Got NAMESPACE response " + response
+											+ " on " + getLogId());
+
+						Object personalNamespaces = response.get(1);
+						if (personalNamespaces != null
+								&& personalNamespaces instanceof ImapList) {
+							if (ImapStore.DEBUG)
+								Log.d(ImapStore.LOG_TAG,
+										"Got personal namespaces: "
+												+ personalNamespaces);
+							ImapList bracketed = (ImapList) personalNamespaces;
+							Object firstNamespace = bracketed.get(0);
+							if (firstNamespace != null
+									&& firstNamespace instanceof ImapList) {
+								if (ImapStore.DEBUG)
+									Log.d(ImapStore.LOG_TAG,
+											"Got first personal namespaces: "
+													+ firstNamespace);
+								bracketed = (ImapList) firstNamespace;
+								mSettings.mPathPrefix = bracketed
+										.getString(0);
+								mSettings.mPathDelimeter = bracketed
+										.getString(1);
+								mSettings.mCombinedPrefix = null;
+								if (ImapStore.DEBUG)
+									Log.d(ImapStore.LOG_TAG, "Got path '"
+											+ mSettings.mPathPrefix
+											+ "' and separator '"
+											+ mSettings.mPathDelimeter
+											+ "'");
+							}
+						}
+					}
+				}
+			} else {
+				if (ImapStore.DEBUG)
+					Log.i(ImapStore.LOG_TAG,
+							"mPathPrefix is unset but server does not have NAMESPACE capability");
+				mSettings.mPathPrefix = "";
+			}
+		}
+		if (mSettings.mPathDelimeter == null && listCommand != null) {
+			try {
+				List<ImapResponse> nameResponses = listCommand.get();
+				for (ImapResponse response : nameResponses) {
+					if (ImapResponseParser.equalsIgnoreCase(
+							response.get(0), ImapKeywords.LIST)) {
+						mSettings.mPathDelimeter = response.getString(2);
+						mSettings.mCombinedPrefix = null;
+						if (ImapStore.DEBUG)
+							Log.d(ImapStore.LOG_TAG, "Got path delimeter '"
+									+ mSettings.mPathDelimeter + "' for "
+									+ getLogId());
+					}
+				}
+			} catch (Exception e) {
+				Log.e(ImapStore.LOG_TAG,
+						"Unable to get path delimeter using LIST", e);
+			}
+		}
+	}
+
 	protected void login() throws IOException, MessagingException {
 		/*
 		 * Use quoted strings which permit spaces and quotes. (Using IMAP string
@@ -526,46 +678,80 @@ class ImapConnection {
 		return response;
 	}
 
-	protected ArrayList<ImapResponse> readStatusResponse(String tag,
+	protected List<ImapResponse> readStatusResponse(String tag,
 			String commandToLog, UntaggedHandler untaggedHandler)
 			throws IOException, MessagingException {
-		ArrayList<ImapResponse> responses = new ArrayList<ImapResponse>();
-		ImapResponse response;
-		do {
-			response = mParser.readResponse();
-			if (ImapStore.DEBUG && ImapStore.DEBUG_PROTOCOL_IMAP)
-				Log.v(ImapStore.LOG_TAG, getLogId() + "<<<" + response);
+		PendingCommand command = new PendingCommand(tag, commandToLog, untaggedHandler);
+		mPendingCommands.add(command);
+		return command.get();
+	}
 
-			if (response.mTag != null && !response.mTag.equalsIgnoreCase(tag)) {
-				Log.w(ImapStore.LOG_TAG, "After sending tag " + tag
+	/**
+	 * Reads responses until the tagged response of the given command arrives.
+	 * 
+	 * Responses are assigned to the pending commands as they are read: tagged
+	 * responses complete the command with the same tag, untagged responses are
+	 * given to the oldest pending command, since servers process the commands
+	 * in the order they are received.
+	 */
+	private void readUntilCompleted(PendingCommand command) throws IOException,
+			MessagingException {
+		
+		if (mPendingAuthentication != null && mPendingAuthentication != command) {
+			checkPendingAuthentication();
+		}
+		
+		mOut.flush();
+		
+		while (!command.mCompleted) {
+			ImapResponse response = readResponse();
+			PendingCommand oldest = mPendingCommands.getFirst();
+			
+			if (response.mTag == null) {
+				oldest.addResponse(response);
+				continue;
+			}
+			
+			PendingCommand target = null;
+			for (PendingCommand pending : mPendingCommands) {
+				if (response.mTag.equalsIgnoreCase(pending.mTag)) {
+					target = pending;
+					break;
+				}
+			}
+			
+			if (target == null) {
+				Log.w(ImapStore.LOG_TAG, "After sending tag " + oldest.mTag
 						+ ", got tag response from previous command "
 						+ response + " for " + getLogId());
-				Iterator<ImapResponse> iter = responses.iterator();
+				Iterator<ImapResponse> iter = oldest.mResponses.iterator();
 				while (iter.hasNext()) {
 					ImapResponse delResponse = iter.next();
 					if (delResponse.mTag != null
 							|| delResponse.size() < 2
 							|| (!ImapResponseParser.equalsIgnoreCase(
-									delResponse.get(1), "EXISTS") && !ImapResponseParser
+									delResponse.get(1), ImapKeywords.EXISTS) && !ImapResponseParser
 									.equalsIgnoreCase(delResponse.get(1),
-											"EXPUNGE"))) {
+											ImapKeywords.EXPUNGE))) {
 						iter.remove();
 					}
 				}
-				response.mTag = null;
 				continue;
 			}
-			if (untaggedHandler != null) {
-				untaggedHandler.handleAsyncUntaggedResponse(response);
-			}
-			responses.add(response);
-		} while (response.mTag == null);
-		if (response.size() < 1
-				|| !ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")) {
-			throw new ImapException("Command: " + commandToLog + "; response: "
-					+ response.toString(), response.getAlertText());
+			
+			target.addResponse(response);
+			target.mCompleted = true;
+			mPendingCommands.remove(target);
+		}
+	}
+	
+	/**
+	 * Reads the responses of all the pending commands.
+	 */
+	private void completePendingCommands() throws IOException, MessagingException {
+		while (!mPendingCommands.isEmpty()) {
+			readUntilCompleted(mPendingCommands.getLast());
 		}
-		return responses;
 	}
 
 	protected void setReadTimeout(int millis) throws SocketException {
@@ -592,8 +778,139 @@ class ImapConnection {
 				&& mSocket.isConnected() && !mSocket.isClosed());
 	}
 
+	/**
+	 * Layers raw DEFLATE (RFC 4978) over the socket streams. The output is
+	 * sync-flushed every time a command is flushed so that the server can
+	 * decompress it right away, which requires API level 19.
+	 */
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private void enableCompression() throws IOException {
+		mInflater = new Inflater(true);
+		mIn = new PeekableInputStream(new InflaterInputStream(
+				mSocket.getInputStream(), mInflater, ImapStore.READ_BUFFER_SIZE),
+				ImapStore.READ_BUFFER_SIZE);
+		mParser = new ImapResponseParser(mIn);
+
+		mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		mOut = new BufferedOutputStream(new DeflaterOutputStream(
+				mSocket.getOutputStream(), mDeflater, 1024, true), 1024);
+	}
+
+	/**
+	 * Returns the milliseconds elapsed since a response was last received on
+	 * this connection.
+	 */
+	public long getIdleTime() {
+		return SystemClock.elapsedRealtime() - mLastActivity;
+	}
+
+	void markReused() {
+		mReused = true;
+	}
+
+	/**
+	 * Returns true if the connection was taken from the pool and has not
+	 * received any response since. An IOException in this state most likely
+	 * means the connection was dropped while idle and the command can be
+	 * sent again, the connection is reopened by the next command.
+	 */
+	boolean isReusedWithoutResponse() {
+		return mReused;
+	}
+
+	/**
+	 * Enables QRESYNC (RFC 7162), which implies CONDSTORE, if the server
+	 * supports it. The ENABLE command is pipelined with the next command, that
+	 * can therefore already be a SELECT with the QRESYNC parameter. If that 
+	 * command fails {@link #isQresyncEnabled()} tells whether the server 
+	 * refused to enable QRESYNC.
+	 * 
+	 * @return true if QRESYNC is enabled on this connection or ENABLE has 
+	 *         been sent and its result isn't known yet.
+	 */
+	public boolean enableQresync() throws IOException, MessagingException {
+		open();
+		
+		if (mQresyncEnable == null && hasCapability(ImapStore.CAPABILITY_QRESYNC)) {
+			mQresyncEnable = sendPipelinedCommand(ImapStore.COMMAND_ENABLE_QRESYNC, false,
+					new UntaggedHandler() {
+						@Override
+						public void handleAsyncUntaggedResponse(ImapResponse response) {
+							if (ImapResponseParser.equalsIgnoreCase(response.get(0), ImapKeywords.ENABLED)) {
+								for (int i = 1; i < response.size(); i++) {
+									if (ImapResponseParser.equalsIgnoreCase(response.get(i),
+											ImapStore.CAPABILITY_QRESYNC)) {
+										mQresyncEnabled = true;
+									}
+								}
+							}
+						}
+					});
+		}
+		
+		return mQresyncEnabled || (mQresyncEnable != null && !mQresyncEnable.isCompleted());
+	}
+	
+	/**
+	 * Returns true if the server confirmed that QRESYNC is enabled, waiting
+	 * for the answer to ENABLE if it hasn't been read yet.
+	 */
+	public boolean isQresyncEnabled() throws IOException, MessagingException {
+		if (mQresyncEnable != null && !mQresyncEnable.isCompleted()) {
+			try {
+				mQresyncEnable.get();
+			} catch (ImapException e) {
+				// the server refused to enable it
+			}
+		}
+		
+		return mQresyncEnabled;
+	}
+
+	public boolean isCompressed() {
+		return mInflater != null;
+	}
+
+	/**
+	 * Returns the bytes transferred in both directions on the network while
+	 * compression was enabled, since the connection was created.
+	 */
+	long getCompressedBytes() {
+		long compressed = mPastCompressedBytes;
+		if (mInflater != null && mDeflater != null) {
+			compressed += mInflater.getBytesRead() + mDeflater.getBytesWritten();
+		}
+		return compressed;
+	}
+
+	/**
+	 * Returns the bytes that {@link #getCompressedBytes()} amount to once
+	 * uncompressed.
+	 */
+	long getUncompressedBytes() {
+		long uncompressed = mPastUncompressedBytes;
+		if (mInflater != null && mDeflater != null) {
+			uncompressed += mInflater.getBytesWritten() + mDeflater.getBytesRead();
+		}
+		return uncompressed;
+	}
+
+	/**
+	 * Returns the ratio between the uncompressed and the compressed bytes
+	 * transferred in both directions, 1 if the connection was never compressed.
+	 */
+	public float getCompressionRatio() {
+		long compressed = getCompressedBytes();
+		return compressed == 0 ? 1f : (float) getUncompressedBytes() / compressed;
+	}
+
 	public void close() {
 
+		if (mInflater != null && ImapStore.DEBUG) {
+			Log.d(ImapStore.LOG_TAG, "Compression ratio for " + getLogId()
+					+ ": " + getCompressionRatio());
+		}
+
 		try {
 			if (mIn != null)
 				mIn.close();
@@ -616,6 +933,24 @@ class ImapConnection {
 		mIn = null;
 		mOut = null;
 		mSocket = null;
+		mQresyncEnabled = false;
+		mQresyncEnable = null;
+		mReused = false;
+		mPendingAuthentication = null;
+		
+		mPastCompressedBytes = getCompressedBytes();
+		mPastUncompressedBytes = getUncompressedBytes();
+		
+		if (mInflater != null) {
+			mInflater.end();
+			mInflater = null;
+		}
+		if (mDeflater != null) {
+			mDeflater.end();
+			mDeflater = null;
+		}
+		
+		mPendingCommands.clear();
 	}
 
 	public ImapResponse readResponse() throws IOException, MessagingException {
@@ -624,8 +959,15 @@ class ImapConnection {
 
 	public ImapResponse readResponse(IImapResponseCallback callback)
 			throws IOException {
+		return readResponse(callback, null);
+	}
+
+	public ImapResponse readResponse(IImapResponseCallback callback,
+			IImapFetchCallback fetchCallback) throws IOException {
 		try {
-			ImapResponse response = mParser.readResponse(callback);
+			ImapResponse response = mParser.readResponse(callback, fetchCallback);
+			mLastActivity = SystemClock.elapsedRealtime();
+			mReused = false;
 			if (ImapStore.DEBUG && ImapStore.DEBUG_PROTOCOL_IMAP)
 				Log.v(ImapStore.LOG_TAG, getLogId() + "<<<" + response);
 
@@ -651,24 +993,12 @@ class ImapConnection {
 			throws MessagingException, IOException {
 		try {
 			open();
-			String tag = Integer.toString(mNextCommandTag++);
-			String commandToSend = tag + " " + command + "\r\n";
-			mOut.write(commandToSend.getBytes());
-			mOut.flush();
-
-			if (ImapStore.DEBUG && ImapStore.DEBUG_PROTOCOL_IMAP) {
-				if (sensitive && !ImapStore.DEBUG_SENSITIVE) {
-					Log.v(ImapStore.LOG_TAG,
-							getLogId()
-									+ ">>> "
-									+ "[Command Hidden, Enable Sensitive Debug Logging To Show]");
-				} else {
-					Log.v(ImapStore.LOG_TAG, getLogId() + ">>> "
-							+ commandToSend);
-				}
-			}
-
-			return tag;
+			
+			// the responses of pipelined commands must not be mixed with the
+			// ones read by the caller
+			completePendingCommands();
+			
+			return writeCommand(command, sensitive, true);
 		} catch (IOException ioe) {
 			close();
 			throw ioe;
@@ -681,6 +1011,63 @@ class ImapConnection {
 		}
 	}
 
+	/**
+	 * Sends a command without waiting for the responses of the commands sent
+	 * before it.
+	 * 
+	 * The command is buffered and sent to the server, together with the other
+	 * commands sent in the meantime, when the responses of one of them are
+	 * requested with {@link PendingCommand#get()}.
+	 */
+	public PendingCommand sendPipelinedCommand(String command, boolean sensitive,
+			UntaggedHandler untaggedHandler) throws MessagingException, IOException {
+		String commandToLog = command;
+		if (sensitive && !ImapStore.DEBUG_SENSITIVE) {
+			commandToLog = "*sensitive*";
+		}
+		
+		try {
+			open();
+			
+			String tag = writeCommand(command, sensitive, false);
+			
+			PendingCommand pending = new PendingCommand(tag, commandToLog, untaggedHandler);
+			mPendingCommands.add(pending);
+			return pending;
+		} catch (IOException ioe) {
+			close();
+			throw ioe;
+		} catch (MessagingException me) {
+			close();
+			throw me;
+		}
+	}
+	
+	private String writeCommand(String command, boolean sensitive, boolean flush)
+			throws IOException {
+		String tag = Integer.toString(mNextCommandTag++);
+		String commandToSend = tag + " " + command + "\r\n";
+		mOut.write(commandToSend.getBytes());
+		
+		if (flush) {
+			mOut.flush();
+		}
+
+		if (ImapStore.DEBUG && ImapStore.DEBUG_PROTOCOL_IMAP) {
+			if (sensitive && !ImapStore.DEBUG_SENSITIVE) {
+				Log.v(ImapStore.LOG_TAG,
+						getLogId()
+								+ ">>> "
+								+ "[Command Hidden, Enable Sensitive Debug Logging To Show]");
+			} else {
+				Log.v(ImapStore.LOG_TAG, getLogId() + ">>> "
+						+ commandToSend);
+			}
+		}
+
+		return tag;
+	}
+
 	public List<ImapResponse> executeSimpleCommand(String command)
 			throws IOException, ImapException, MessagingException {
 		return executeSimpleCommand(command, false, null);
@@ -695,21 +1082,7 @@ class ImapConnection {
 	public List<ImapResponse> executeSimpleCommand(String command,
 			boolean sensitive, UntaggedHandler untaggedHandler)
 			throws IOException, ImapException, MessagingException {
-		String commandToLog = command;
-		if (sensitive && !ImapStore.DEBUG_SENSITIVE) {
-			commandToLog = "*sensitive*";
-		}
-
-		// if (DEBUG)
-		// Log.v(LOG_TAG, "Sending IMAP command " + commandToLog +
-		// " on connection " + getLogId());
-
-		String tag = sendCommand(command, sensitive);
-		// if (DEBUG)
-		// Log.v(LOG_TAG, "Sent IMAP command " + commandToLog + " with tag " +
-		// tag + " for " + getLogId());
-
-		return readStatusResponse(tag, commandToLog, untaggedHandler);
+		return sendPipelinedCommand(command, sensitive, untaggedHandler).get();
 	}
 
 	public void writeMessage(ImapMessage message) throws IOException {
@@ -736,14 +1109,106 @@ class ImapConnection {
 	    String mPathPrefix;
 	    String mCombinedPrefix = null;
 	    String mPathDelimeter = null;
+	    boolean mCompressionOnMobile;
+	    boolean mCompressionOnWifi;
 	    
-		public boolean useCompression(int type) {		
-			return false;
-		}		
+	    /*
+	     * The capabilities announced before and after the authentication by
+	     * the last connection, null if unknown.
+	     */
+	    volatile Set<String> mCapabilitiesBeforeAuth;
+	    volatile Set<String> mCapabilitiesAfterAuth;
+	    
+	    void clearCachedCapabilities() {
+	    	mCapabilitiesBeforeAuth = null;
+	    	mCapabilitiesAfterAuth = null;
+	    }
+	    
+		/**
+		 * Returns whether compression is used on the given network type, as
+		 * set in {@link ImapPreferences} for cellular and other metered
+		 * networks and for Wi-Fi and wired networks. Other network types don't
+		 * use compression.
+		 */
+		public boolean useCompression(int type) {
+			switch (type) {
+			case ConnectivityManager.TYPE_MOBILE:
+			case ConnectivityManager.TYPE_MOBILE_MMS:
+			case ConnectivityManager.TYPE_MOBILE_SUPL:
+			case ConnectivityManager.TYPE_MOBILE_DUN:
+			case ConnectivityManager.TYPE_MOBILE_HIPRI:
+			case ConnectivityManager.TYPE_WIMAX:
+				return mCompressionOnMobile;
+			case ConnectivityManager.TYPE_WIFI:
+			case ConnectivityManager.TYPE_ETHERNET:
+				return mCompressionOnWifi;
+			default:
+				return false;
+			}
+		}
 	   
 	}
 	
 	interface UntaggedHandler {
 	    void handleAsyncUntaggedResponse(ImapResponse respose);
 	}
+	
+	/**
+	 * A command sent with {@link ImapConnection#sendPipelinedCommand} whose
+	 * responses may not have been read yet.
+	 */
+	class PendingCommand {
+		
+		private final String mTag;
+		private final String mCommandToLog;
+		private final UntaggedHandler mUntaggedHandler;
+		private final ArrayList<ImapResponse> mResponses = new ArrayList<ImapResponse>();
+		private boolean mCompleted;
+		
+		private PendingCommand(String tag, String commandToLog,
+				UntaggedHandler untaggedHandler) {
+			mTag = tag;
+			mCommandToLog = commandToLog;
+			mUntaggedHandler = untaggedHandler;
+		}
+		
+		private void addResponse(ImapResponse response) {
+			if (mUntaggedHandler != null) {
+				mUntaggedHandler.handleAsyncUntaggedResponse(response);
+			}
+			mResponses.add(response);
+		}
+		
+		public String getTag() {
+			return mTag;
+		}
+		
+		public boolean isCompleted() {
+			return mCompleted;
+		}
+		
+		/**
+		 * Waits for the tagged response of the command.
+		 * 
+		 * @return the untagged responses received for the command followed by
+		 *         its tagged response.
+		 * 
+		 * @throws ImapException
+		 *             if the command didn't complete successfully.
+		 */
+		public List<ImapResponse> get() throws IOException, MessagingException {
+			readUntilCompleted(this);
+			
+			ImapResponse response = mResponses.get(mResponses.size() - 1);
+			
+			if (response.size() < 1
+					|| !ImapResponseParser.equalsIgnoreCase(response.get(0), ImapKeywords.OK)) {
+				throw new ImapException("Command: " + mCommandToLog + "; response: "
+						+ response.toString(), response.getAlertText(),
+						response.getResponseCode());
+			}
+			return mResponses;
+		}
+		
+	}
 }
\ No newline at end of file
@@ -22,12 +22,18 @@ class ImapException extends MessagingException {
 
 	private static final long serialVersionUID = 3725007182205882394L;
     private String mAlertText;
+    private String mResponseCode;
 
     public ImapException(String message, String alertText) {
         super(message, true);
         this.mAlertText = alertText;
     }
 
+    public ImapException(String message, String alertText, String responseCode) {
+        this(message, alertText);
+        this.mResponseCode = responseCode;
+    }
+
     public String getAlertText() {
         return mAlertText;
     }
@@ -35,4 +41,12 @@ class ImapException extends MessagingException {
     public void setAlertText(String alertText) {
         mAlertText = alertText;
     }
+
+    /**
+     * Returns the response code of the failed command, for instance TRYCREATE,
+     * or null if the server didn't send one.
+     */
+    public String getResponseCode() {
+        return mResponseCode;
+    }
 }
\ No newline at end of file
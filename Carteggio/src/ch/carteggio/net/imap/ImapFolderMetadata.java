@@ -0,0 +1,94 @@
+/*   
+ * Copyright (c) 2014, Lorenzo Keller
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ *    
+ */
+package ch.carteggio.net.imap;
+
+/**
+ * What the store knows about a folder on the server, shared by all the
+ * sessions of an {@link ImapStore} so that the folder doesn't have to be
+ * looked up before every command that refers to it.
+ * 
+ * The values are learned from the LIST and SELECT responses and from the
+ * outcome of the commands that use the folder.
+ */
+class ImapFolderMetadata {
+
+	private final String mName;
+	
+	/*
+	 * True if the folder is known to exist, false if it is known to be
+	 * missing and null if unknown.
+	 */
+	private volatile Boolean mExists;
+	
+	private volatile String mEncodedName;
+	
+	private volatile String mDelimiter;
+	
+	private volatile long mUidValidity = -1L;
+	
+	ImapFolderMetadata(String name) {
+		this.mName = name;
+	}
+	
+	public String getName() {
+		return mName;
+	}
+	
+	public Boolean getExists() {
+		return mExists;
+	}
+	
+	public void setExists(boolean exists) {
+		mExists = exists;
+	}
+	
+	/**
+	 * Forgets whether the folder exists, for instance after a command failed
+	 * with TRYCREATE.
+	 */
+	public void invalidate() {
+		mExists = null;
+		mUidValidity = -1L;
+	}
+	
+	/**
+	 * Returns the name of the folder, including the prefix, as it is sent in
+	 * commands or null if unknown.
+	 */
+	public String getEncodedName() {
+		return mEncodedName;
+	}
+	
+	public void setEncodedName(String encodedName) {
+		mEncodedName = encodedName;
+	}
+	
+	public String getDelimiter() {
+		return mDelimiter;
+	}
+	
+	public void setDelimiter(String delimiter) {
+		mDelimiter = delimiter;
+	}
+	
+	public long getUidValidity() {
+		return mUidValidity;
+	}
+	
+	public void setUidValidity(long uidValidity) {
+		mUidValidity = uidValidity;
+	}
+	
+}
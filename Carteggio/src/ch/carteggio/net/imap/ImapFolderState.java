@@ -16,6 +16,7 @@ package ch.carteggio.net.imap;
 
 import java.util.List;
 
+import ch.carteggio.net.imap.parsing.ImapKeywords;
 import ch.carteggio.net.imap.parsing.ImapList;
 import ch.carteggio.net.imap.parsing.ImapResponse;
 import ch.carteggio.net.imap.parsing.ImapResponseParser;
@@ -26,6 +27,12 @@ public class ImapFolderState {
 		
 		public void onFolderChanged(String folderName);
 		
+		/**
+		 * Called when the number of messages or UIDNEXT grew, that is when
+		 * messages have been added to the folder.
+		 */
+		public void onMessagesAdded(String folderName);
+		
 	}
 	
 	private String mName;
@@ -36,6 +43,20 @@ public class ImapFolderState {
 
 	private volatile long mUidNext = -1L;
 	
+	private volatile long mUidValidity = -1L;
+	
+	/*
+	 * The HIGHESTMODSEQ of the folder (RFC 7162), 0 if the server doesn't
+	 * keep modification sequences for it and -1 if unknown.
+	 */
+	private volatile long mHighestModSeq = -1L;
+	
+	/*
+	 * True while the state reflects the folder as it was reported when it
+	 * was selected, that is no change has been notified since then.
+	 */
+	private volatile boolean mUnchangedSinceOpen;
+	
 	public ImapFolderState(String mName) {
 		this.mName = mName;
 	}
@@ -48,8 +69,33 @@ public class ImapFolderState {
 		return mUidNext;
 	}
 
+	public long getUidValidity() {
+		return mUidValidity;
+	}
+	
+	public long getHighestModSeq() {
+		return mHighestModSeq;
+	}
+	
+	/**
+	 * Returns true if no change to the folder has been notified since it was
+	 * selected, in this case the UIDNEXT and HIGHESTMODSEQ values are still
+	 * current.
+	 */
+	public boolean isUnchangedSinceOpen() {
+		return mUnchangedSinceOpen;
+	}
+	
 	public void invalidate() {
 		mMessageCount = -1;
+		mUnchangedSinceOpen = false;
+	}
+	
+	/**
+	 * Called once the responses to SELECT have been handled.
+	 */
+	void opened() {
+		mUnchangedSinceOpen = true;
 	}
 	
 	public void setListener(ImapFolderListener listener) {
@@ -84,28 +130,45 @@ public class ImapFolderState {
 		
 		if (response.mTag == null && response.size() > 1) {
 			
-			if (ImapResponseParser.equalsIgnoreCase(response.get(1), "EXISTS")) {
+			if (ImapResponseParser.equalsIgnoreCase(response.get(1), ImapKeywords.EXISTS)) {
 				
-				mMessageCount = response.getNumber(0);
+				updateMessageCount(response.getNumber(0));
+				mUnchangedSinceOpen = false;
 				
 				if (mListener != null) mListener.onFolderChanged(mName);
 				
 			}
 			
 			handlePossibleUidNext(response);
+			
+			if (ImapResponseParser.equalsIgnoreCase(response.get(0), ImapKeywords.STATUS)
+					&& response.size() > 2 && response.get(2) instanceof ImapList) {
+				
+				handleStatus(response.getList(2));
+				
+			}
+			
+			if (ImapResponseParser.equalsIgnoreCase(response.get(0), ImapKeywords.VANISHED)) {
+				
+				handleVanished(response);
+				
+			}
 	
-			if (ImapResponseParser.equalsIgnoreCase(response.get(1), "EXPUNGE")
+			if (ImapResponseParser.equalsIgnoreCase(response.get(1), ImapKeywords.EXPUNGE)
 					&& mMessageCount > 0) {
 				
 				mMessageCount--;
+				mUnchangedSinceOpen = false;
 			
 				if (mListener != null) mListener.onFolderChanged(mName);
 				
 			}
 	
-	        if (ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+	        if (ImapResponseParser.equalsIgnoreCase(response.get(1), ImapKeywords.FETCH)) {
 	      
 	        	//int msgSeq = (int) response.getLong(0);
+	        	
+	        	mUnchangedSinceOpen = false;
 	
 	        	if (mListener != null) mListener.onFolderChanged(mName);
 				
@@ -121,11 +184,12 @@ public class ImapFolderState {
 	 * The server can notify what is the next uid that will be used.
 	 * 
 	 * This function finds the NEXTUID response and updates the folder state
-	 * accordingly.
+	 * accordingly. The UIDVALIDITY, HIGHESTMODSEQ and NOMODSEQ response codes
+	 * are handled the same way.
 	 * 
 	 */
 	private void handlePossibleUidNext(ImapResponse response) {
-		if (ImapResponseParser.equalsIgnoreCase(response.get(0), "OK")
+		if (ImapResponseParser.equalsIgnoreCase(response.get(0), ImapKeywords.OK)
 				&& response.size() > 1) {
 			Object bracketedObj = response.get(1);
 			if (bracketedObj instanceof ImapList) {
@@ -135,20 +199,92 @@ public class ImapFolderState {
 					Object keyObj = bracketed.get(0);
 					if (keyObj instanceof String) {
 						String key = (String) keyObj;
-						if ("UIDNEXT".equalsIgnoreCase(key)) {
-							mUidNext = bracketed.getLong(1);
+						if (ImapResponseParser.equalsIgnoreCase(key, ImapKeywords.UIDNEXT)) {
+							updateNextUid(bracketed.getLong(1));
 	
 							if (mListener != null) mListener.onFolderChanged(mName);
+						} else if (ImapResponseParser.equalsIgnoreCase(key, ImapKeywords.UIDVALIDITY)) {
+							long uidValidity = bracketed.getLong(1);
+							if (uidValidity != mUidValidity) {
+								// the modification sequences of the old UIDs are meaningless
+								mHighestModSeq = -1L;
+							}
+							mUidValidity = uidValidity;
+						} else if (ImapResponseParser.equalsIgnoreCase(key, ImapKeywords.HIGHESTMODSEQ)) {
+							mHighestModSeq = bracketed.getLong(1);
 						}
 					}
+				} else if (bracketed.size() == 1 && ImapResponseParser.equalsIgnoreCase(
+						bracketed.get(0), ImapKeywords.NOMODSEQ)) {
+					mHighestModSeq = 0;
 				}
 
 			}
 		}
 	}
 
+	/**
+	 * Handles a VANISHED response, the UIDs flagged EARLIER were expunged before
+	 * the folder was selected and don't change the message count. The UIDs 
+	 * themselves aren't needed, only new messages are synchronized.
+	 * 
+	 * * VANISHED (EARLIER) 300:310,405
+	 */
+	private void handleVanished(ImapResponse response) {
+		boolean earlier = false;
+		String set = null;
+		for (int i = 1; i < response.size(); i++) {
+			Object item = response.get(i);
+			if (item instanceof ImapList) {
+				earlier = ImapResponseParser.equalsIgnoreCase(
+						((ImapList) item).get(0), ImapKeywords.EARLIER);
+			} else if (item instanceof String) {
+				set = (String) item;
+			}
+		}
+		
+		if (!earlier && mMessageCount > 0) {
+			long vanished = ImapUtility.getImapSequenceSize(set);
+			mMessageCount = (int) Math.max(0, mMessageCount - vanished);
+			mUnchangedSinceOpen = false;
+		}
+		
+		if (mListener != null) mListener.onFolderChanged(mName);
+	}
+
+	/**
+	 * Handles the answer to STATUS (MESSAGES UIDNEXT), which the session only
+	 * asks for its own folder.
+	 * 
+	 * * STATUS INBOX (MESSAGES 231 UIDNEXT 44292)
+	 */
+	private void handleStatus(ImapList status) {
+		if (status.containsKey(ImapKeywords.MESSAGES)) {
+			updateMessageCount((int) status.getKeyedNumber(ImapKeywords.MESSAGES));
+		}
+		if (status.containsKey(ImapKeywords.UIDNEXT)) {
+			updateNextUid(status.getKeyedNumber(ImapKeywords.UIDNEXT));
+		}
+	}
+	
+	private void updateMessageCount(int messageCount) {
+		int previous = mMessageCount;
+		mMessageCount = messageCount;
+		
+		if (previous != -1 && messageCount > previous) {
+			mUnchangedSinceOpen = false;
+			if (mListener != null) mListener.onMessagesAdded(mName);
+		}
+	}
+
 	public void updateNextUid(long nextUid) {
+		long previous = mUidNext;
 		mUidNext = nextUid;
+		
+		if (previous != -1 && nextUid > previous) {
+			mUnchangedSinceOpen = false;
+			if (mListener != null) mListener.onMessagesAdded(mName);
+		}
 	}	
 	
 }
@@ -23,6 +23,7 @@ import java.util.HashSet;
 import org.apache.james.mime4j.dom.Message;
 import org.apache.james.mime4j.message.DefaultMessageBuilder;
 import org.apache.james.mime4j.message.MessageImpl;
+import org.apache.james.mime4j.storage.StorageBodyFactory;
 import org.apache.james.mime4j.stream.MimeConfig;
 
 import ch.carteggio.net.MessagingException;
@@ -108,6 +109,9 @@ public class ImapMessage extends MessageImpl {
         parserConfig.setMaxHeaderCount(-1); // Disable the check for header count.
 		
 		builder.setMimeEntityConfig(parserConfig);
+		
+		// bodies go to the default storage provider, large ones are spooled to disk
+		builder.setBodyFactory(new StorageBodyFactory());
 			
 	    try {
 	    	
@@ -117,6 +121,9 @@ public class ImapMessage extends MessageImpl {
 	    	  
 	    	  if ( getBody() == null ) {
 	    	   	  setBody(message.getBody());
+	    	  } else {
+	    		  // the body we already have is kept, the parsed one may be spooled
+	    		  message.dispose();
 	    	  }
 	    	  
 	    } finally {
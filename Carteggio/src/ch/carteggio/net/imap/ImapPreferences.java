@@ -19,6 +19,9 @@ package ch.carteggio.net.imap;
 
 public class ImapPreferences {
 
+	private boolean mCompressionOnMobile = true;
+	private boolean mCompressionOnWifi = false;
+
 	public int getMaximumAutoDownloadMessageSize() {
 		return 1024;
 	}
@@ -39,4 +42,28 @@ public class ImapPreferences {
 		return false;
 	}
 
+	/**
+	 * Whether COMPRESS=DEFLATE is negotiated on cellular and other metered
+	 * networks, where the bandwidth saved is worth the CPU time.
+	 */
+	public boolean useCompressionOnMobile() {
+		return mCompressionOnMobile;
+	}
+
+	public void setCompressionOnMobile(boolean compression) {
+		mCompressionOnMobile = compression;
+	}
+
+	/**
+	 * Whether COMPRESS=DEFLATE is negotiated on Wi-Fi and wired networks, 
+	 * where the CPU time costs more than the bandwidth saved.
+	 */
+	public boolean useCompressionOnWifi() {
+		return mCompressionOnWifi;
+	}
+
+	public void setCompressionOnWifi(boolean compression) {
+		mCompressionOnWifi = compression;
+	}
+
 }
@@ -18,9 +18,7 @@
 
 package ch.carteggio.net.imap;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -35,31 +33,17 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.apache.james.mime4j.codec.Base64InputStream;
-import org.apache.james.mime4j.codec.DecodeMonitor;
-import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
-import org.apache.james.mime4j.dom.Body;
 import org.apache.james.mime4j.dom.Entity;
 import org.apache.james.mime4j.dom.Message;
-import org.apache.james.mime4j.dom.Multipart;
-import org.apache.james.mime4j.dom.TextBody;
-import org.apache.james.mime4j.dom.field.ContentDispositionField;
-import org.apache.james.mime4j.field.Fields;
-import org.apache.james.mime4j.message.BodyPart;
-import org.apache.james.mime4j.message.HeaderImpl;
-import org.apache.james.mime4j.message.MultipartImpl;
-import org.apache.james.mime4j.storage.StorageBodyFactory;
-import org.apache.james.mime4j.stream.RawField;
-import org.apache.james.mime4j.util.MimeUtil;
 
 import android.annotation.SuppressLint;
 import android.os.PowerManager.WakeLock;
 import android.util.Log;
 import ch.carteggio.net.MessagingException;
+import ch.carteggio.net.imap.ImapConnection.PendingCommand;
 import ch.carteggio.net.imap.ImapConnection.UntaggedHandler;
-import ch.carteggio.net.imap.parsing.FetchBodyCallback;
 import ch.carteggio.net.imap.parsing.FetchPartCallback;
-import ch.carteggio.net.imap.parsing.IImapResponseCallback;
+import ch.carteggio.net.imap.parsing.ImapKeywords;
 import ch.carteggio.net.imap.parsing.ImapList;
 import ch.carteggio.net.imap.parsing.ImapResponse;
 import ch.carteggio.net.imap.parsing.ImapResponseParser;
@@ -95,15 +79,38 @@ public class ImapSession {
 
 	protected List<ImapResponse> executeSimpleCommand(String command)
 			throws MessagingException, IOException {
-		return mState.handleUntaggedResponses(mConnection
-				.executeSimpleCommand(command));
+		return executeSimpleCommand(command, false, null);
 	}
 
 	protected List<ImapResponse> executeSimpleCommand(String command,
 			boolean sensitive, UntaggedHandler untaggedHandler)
 			throws MessagingException, IOException {
-		return mState.handleUntaggedResponses(mConnection.executeSimpleCommand(
-				command, sensitive, untaggedHandler));
+		boolean retry = mConnection.isReusedWithoutResponse();
+		try {
+			return mState.handleUntaggedResponses(mConnection.executeSimpleCommand(
+					command, sensitive, untaggedHandler));
+		} catch (IOException ioe) {
+			if (!retry) {
+				throw ioe;
+			}
+			// the connection was dropped while idle, the command had no effect
+			reselect();
+			return mState.handleUntaggedResponses(mConnection.executeSimpleCommand(
+					command, sensitive, untaggedHandler));
+		}
+	}
+
+	/**
+	 * Selects the folder again after the connection turned out to be dropped
+	 * the first time it was used without a NOOP, the command reopens it.
+	 */
+	private void reselect() throws IOException, MessagingException {
+		if (ImapStore.DEBUG) {
+			Log.d(ImapStore.LOG_TAG, "Connection dropped while idle, selecting "
+					+ getLogId() + " again");
+		}
+		select(mMode);
+		mState.opened();
 	}
 
 	public void open(int mode) throws MessagingException {
@@ -117,6 +124,12 @@ public class ImapSession {
 
 	protected List<ImapResponse> internalOpen(int mode) throws MessagingException {
 		if (isOpen() && mMode == mode) {
+			// A connection used recently is most likely still valid, if it
+			// was dropped the first command selects the folder again.
+			if (mConnection.getIdleTime() < ImapStore.POOL_PROBE_IDLE_TIME) {
+				mConnection.markReused();
+				return Collections.emptyList();
+			}
 			// Make sure the connection is valid. If it's not we'll close it
 			// down and continue
 			// on to get a new one.
@@ -141,13 +154,20 @@ public class ImapSession {
 		// * OK [UIDNEXT 57576] Predicted next UID
 		// 2 OK [READ-WRITE] Select completed.
 		try {
-			mState.invalidate();
-			String command = String.format("%s %s",
-					mode == OPEN_MODE_RW ? "SELECT" : "EXAMINE", ImapUtility
-							.encodeString(ImapUtility
-									.encodeFolderName(mName.getPrefixedName())));
-
-			List<ImapResponse> responses = executeSimpleCommand(command);
+			boolean retry = mConnection.isReusedWithoutResponse();
+			
+			List<ImapResponse> responses;
+			
+			try {
+				responses = select(mode);
+			} catch (IOException ioe) {
+				if (!retry) {
+					throw ioe;
+				}
+				// the pooled connection was dropped while idle, the command
+				// reopens it
+				responses = select(mode);
+			}
 
 			/*
 			 * If the command succeeds we expect the folder has been opened
@@ -178,9 +198,9 @@ public class ImapSession {
 							String key = (String) keyObj;
 							if (response.mTag != null) {
 
-								if ("READ-ONLY".equalsIgnoreCase(key)) {
+								if (ImapResponseParser.equalsIgnoreCase(key, ImapKeywords.READ_ONLY)) {
 									mMode = OPEN_MODE_RO;
-								} else if ("READ-WRITE".equalsIgnoreCase(key)) {
+								} else if (ImapResponseParser.equalsIgnoreCase(key, ImapKeywords.READ_WRITE)) {
 									mMode = OPEN_MODE_RW;
 								}
 							}
@@ -189,6 +209,12 @@ public class ImapSession {
 				}
 			}
 			
+			mState.opened();
+			
+			ImapFolderMetadata metadata = mStore.getFolderMetadata(mName.getName());
+			metadata.setExists(true);
+			metadata.setUidValidity(mState.getUidValidity());
+			
 			return responses;
 		} catch (IOException ioe) {
 			throw ioExceptionHandler(mConnection, ioe);
@@ -199,6 +225,49 @@ public class ImapSession {
 		}
 	}
 
+	/**
+	 * Sends SELECT or EXAMINE for the folder, with the QRESYNC or CONDSTORE
+	 * parameters supported by the connection.
+	 */
+	private List<ImapResponse> select(int mode) throws IOException, MessagingException {
+		mState.invalidate();
+		String command = String.format("%s %s",
+				mode == OPEN_MODE_RW ? "SELECT" : "EXAMINE", ImapUtility
+						.encodeString(ImapUtility
+								.encodeFolderName(mName.getPrefixedName())));
+
+		// with the values of the last time the folder was selected the server
+		// only reports what changed since then
+		if (mConnection.enableQresync()) {
+			long uidValidity = mState.getUidValidity();
+			long modSeq = mState.getHighestModSeq();
+			String qresync = "";
+			if (uidValidity > 0 && modSeq > 0) {
+				qresync = String.format(Locale.US, " (QRESYNC (%d %d))",
+						uidValidity, modSeq);
+			}
+			try {
+				return mState.handleUntaggedResponses(mConnection
+						.executeSimpleCommand(command + qresync));
+			} catch (ImapException ie) {
+				// the SELECT was sent before knowing whether ENABLE succeeded
+				if (mConnection.isQresyncEnabled()) {
+					throw ie;
+				}
+				if (ImapStore.DEBUG) {
+					Log.d(ImapStore.LOG_TAG, "QRESYNC not enabled for " + getLogId());
+				}
+			}
+		}
+		
+		if (mConnection.hasCapability(ImapStore.CAPABILITY_CONDSTORE)) {
+			command += " (CONDSTORE)";
+		}
+
+		return mState.handleUntaggedResponses(mConnection
+				.executeSimpleCommand(command));
+	}
+
 	/**
 	 * Parses an string like PERMANENTFLAGS (\Answered \Flagged \Deleted //
 	 * \Seen \Draft NonJunk $label1 \*)
@@ -308,6 +377,38 @@ public class ImapSession {
 	 */
 	public Map<String, String> copyMessages(ImapMessage[] messages,
 			ImapSession folder) throws MessagingException {
+		return transferMessages(messages, folder, "UID COPY");
+	}
+
+	private void createFolder(ImapSession folder) throws MessagingException {
+		/*
+		 * If the remote folder doesn't exist we try to create it.
+		 */
+		if (ImapStore.DEBUG) {
+			Log.i(ImapStore.LOG_TAG,
+					"ImapFolder.copyMessages: attempting to create remote "
+							+ "folder '" + folder.getFolderName().getName() + "' for "
+							+ getLogId());
+		}
+
+		try {
+			mStore.createRemoteFolder(folder.getFolderName().getName());
+		} catch (ImapException ie) {
+			// someone else may have created it in the meantime
+			if (!ImapKeywords.ALREADYEXISTS.equalsIgnoreCase(ie.getResponseCode())) {
+				throw ie;
+			}
+		}
+	}
+
+	/**
+	 * Copies the messages with UID COPY or moves them with UID MOVE, creating
+	 * the destination folder if needed.
+	 * 
+	 * @return The mapping of original message UIDs to the new server UIDs.
+	 */
+	private Map<String, String> transferMessages(ImapMessage[] messages,
+			ImapSession folder, String command) throws MessagingException {
 		if (!(folder instanceof ImapSession)) {
 			throw new MessagingException(
 					"ImapFolder.copyMessages passed non-ImapFolder");
@@ -325,39 +426,108 @@ public class ImapSession {
 			uids[i] = messages[i].getUid();
 		}
 
-		try {
-			String remoteDestName = ImapUtility.encodeString(ImapUtility
-					.encodeFolderName(iFolder.getFolderName().getPrefixedName()));
-
-			// TODO: Try to copy/move the messages first and only create the
-			// folder if the
-			// operation fails. This will save a roundtrip if the folder already
-			// exists.
-			if (!exists(remoteDestName)) {
-				/*
-				 * If the remote folder doesn't exist we try to create it.
-				 */
-				if (ImapStore.DEBUG) {
-					Log.i(ImapStore.LOG_TAG,
-							"ImapFolder.copyMessages: attempting to create remote "
-									+ "folder '" + remoteDestName + "' for "
-									+ getLogId());
-				}
+		ImapFolderMetadata destination = mStore.getFolderMetadata(iFolder
+				.getFolderName().getName());
 
-				mStore.createFolder(iFolder.getFolderName().getName(), FolderType.HOLDS_MESSAGES);
+		try {
+			String remoteDestName = destination.getEncodedName();
+			if (remoteDestName == null) {
+				remoteDestName = ImapUtility.encodeString(ImapUtility
+						.encodeFolderName(iFolder.getFolderName().getPrefixedName()));
+				destination.setEncodedName(remoteDestName);
+			}
+			
+			Boolean exists = destination.getExists();
+			
+			if (Boolean.FALSE.equals(exists)) {
+				createFolder(iFolder);
+				exists = Boolean.TRUE;
 			}
 
+			/*
+			 * If we don't know whether the folder exists the check and the
+			 * transfer are pipelined: in the common case the folder exists and
+			 * the copy completes in the same round trip. If the folder is
+			 * missing the copy fails without effects, the folder is created and
+			 * the copy is sent again.
+			 */
 			// TODO: Split this into multiple commands if the command exceeds a
 			// certain length.
-			List<ImapResponse> responses = executeSimpleCommand(String.format(
-					"UID COPY %s %s", ImapUtility.combine(uids, ','),
-					remoteDestName));
-
-			// Get the tagged response for the UID COPY command
-			ImapResponse response = responses.get(responses.size() - 1);
+			String copyCommand = String.format("%s %s %s", command,
+					ImapUtility.combine(uids, ','), remoteDestName);
+			
+			List<ImapResponse> responses = null;
+			ImapException copyError = null;
+			
+			boolean retry = mConnection.isReusedWithoutResponse();
+			
+			while (true) {
+				boolean received = false;
+				try {
+					PendingCommand statusCommand = null;
+					if (exists == null) {
+						statusCommand = mConnection.sendPipelinedCommand(
+								String.format("STATUS %s (RECENT)", remoteDestName), false, null);
+					}
+					
+					PendingCommand pendingCopy = mConnection.sendPipelinedCommand(
+							copyCommand, false, null);
+					
+					if (statusCommand != null) {
+						try {
+							// Since we don't care about RECENT, we'll use that for the
+							// check, the responses are not passed to our own state.
+							statusCommand.get();
+							exists = Boolean.TRUE;
+						} catch (ImapException ie) {
+							exists = Boolean.FALSE;
+						}
+						received = true;
+					}
+					
+					try {
+						responses = mState.handleUntaggedResponses(pendingCopy.get());
+					} catch (ImapException ie) {
+						copyError = ie;
+					}
+					break;
+				} catch (IOException ioe) {
+					// if nothing was received on a connection reused without a
+					// NOOP it was dropped while idle and the commands had no effect
+					if (!retry || received) {
+						throw ioe;
+					}
+					retry = false;
+					reselect();
+				}
+			}
+			
+			if (copyError != null) {
+				ImapException ie = copyError;
+				// the cached state may be stale, the next time the folder is
+				// checked again unless the server tells it is missing
+				destination.invalidate();
+				
+				if (exists && !ImapKeywords.TRYCREATE.equalsIgnoreCase(ie.getResponseCode())) {
+					throw ie;
+				}
+				
+				createFolder(iFolder);
+				
+				responses = executeSimpleCommand(copyCommand);
+			}
+			
+			destination.setExists(true);
 
 			Map<String, String> uidMap = null;
-			if (response.size() > 1) {
+			
+			// the COPYUID code is in the tagged response of UID COPY and in an
+			// untagged OK response for UID MOVE
+			for (ImapResponse response : responses) {
+				if (uidMap != null || response.size() < 2
+						|| !ImapResponseParser.equalsIgnoreCase(response.get(0), ImapKeywords.OK)) {
+					continue;
+				}
 				/*
 				 * If the server supports UIDPLUS, then along with the COPY
 				 * response it will return an COPYUID response code, e.g.
@@ -419,15 +589,71 @@ public class ImapSession {
 		}
 	}
 
+	/**
+	 * Moves messages to another folder.
+	 * 
+	 * With MOVE (RFC 6851) this is a single UID MOVE. With UIDPLUS (RFC 4315)
+	 * the messages are copied, flagged as deleted and removed with UID
+	 * EXPUNGE, which doesn't touch other messages flagged as deleted. Otherwise
+	 * the messages are only flagged as deleted and remain in this folder until
+	 * the next {@link #expunge()}, see {@link #isMoveExpunging()}.
+	 * 
+	 * @return The mapping of original message UIDs to the new server UIDs.
+	 */
 	public Map<String, String> moveMessages(ImapMessage[] messages,
 			ImapSession folder) throws MessagingException {
 		if (messages.length == 0)
 			return null;
+		
+		open(OPEN_MODE_RW);
+		checkOpen();
+		
+		if (mConnection.hasCapability(ImapStore.CAPABILITY_MOVE)) {
+			return transferMessages(messages, folder, "UID MOVE");
+		}
+		
 		Map<String, String> uidMap = copyMessages(messages, folder);
-		setFlags(messages, new Flag[] { Flag.DELETED }, true);
+		
+		if (!mConnection.hasCapability(ImapStore.CAPABILITY_UIDPLUS)) {
+			setFlags(messages, new Flag[] { Flag.DELETED }, true);
+			return uidMap;
+		}
+		
+		Long[] uids = new Long[messages.length];
+		for (int i = 0, count = messages.length; i < count; i++) {
+			uids[i] = messages[i].getUid();
+		}
+		String uidSet = ImapUtility.combine(uids, ',');
+		
+		try {
+			// both commands are sent in the same round trip
+			PendingCommand store = mConnection.sendPipelinedCommand(String.format(
+					"UID STORE %s +FLAGS.SILENT (%s)", uidSet,
+					combineFlags(new Flag[] { Flag.DELETED })), false, null);
+			PendingCommand expunge = mConnection.sendPipelinedCommand(
+					"UID EXPUNGE " + uidSet, false, null);
+			
+			mState.handleUntaggedResponses(store.get());
+			mState.handleUntaggedResponses(expunge.get());
+		} catch (IOException ioe) {
+			throw ioExceptionHandler(mConnection, ioe);
+		}
+		
 		return uidMap;
 	}
 	
+	/**
+	 * Returns true if {@link #moveMessages(ImapMessage[], ImapSession)}
+	 * removes the messages from this folder, false if they are only flagged as
+	 * deleted.
+	 */
+	public boolean isMoveExpunging() throws MessagingException {
+		checkOpen();
+		return mConnection.hasCapability(ImapStore.CAPABILITY_MOVE)
+				|| mConnection.hasCapability(ImapStore.CAPABILITY_UIDPLUS);
+	}
+	
+	
 	public ImapFolderName getFolderName() {
 		return mName;
 	}
@@ -446,7 +672,10 @@ public class ImapSession {
 			String remoteTrashName = ImapUtility.encodeString(ImapUtility
 					.encodeFolderName(remoteTrashFolder.getFolderName().getPrefixedName()));
 
-			if (!exists(remoteTrashName)) {
+			boolean trashExists = Boolean.TRUE.equals(mStore.getFolderMetadata(
+					trashFolderName).getExists());
+
+			if (!trashExists && !exists(remoteTrashName)) {
 				/*
 				 * If the remote trash folder doesn't exist we try to create it.
 				 */
@@ -458,7 +687,7 @@ public class ImapSession {
 				mStore.createFolder(remoteTrashFolder.getFolderName().getName(), FolderType.HOLDS_MESSAGES);
 			}
 
-			if (exists(remoteTrashName)) {
+			if (trashExists || exists(remoteTrashName)) {
 				if (ImapStore.DEBUG)
 					Log.d(ImapStore.LOG_TAG,
 							"IMAPMessage.delete: copying remote "
@@ -487,7 +716,7 @@ public class ImapSession {
 					Locale.US, "SEARCH %d:* %s", start, criteria));
 			for (ImapResponse response : responses) {
 				if (ImapResponseParser.equalsIgnoreCase(response.get(0),
-						"SEARCH")) {
+						ImapKeywords.SEARCH)) {
 					count += response.size() - 1;
 				}
 			}
@@ -527,6 +756,35 @@ public class ImapSession {
 
 	}
 
+	/**
+	 * Returns the UID that the next message added to the folder will get, as
+	 * last reported by the server. Only if the server never reported it the
+	 * highest UID is searched.
+	 */
+	public long getUidNext() {
+		long uidNext = mState.getUidNext();
+		if (uidNext > 0) {
+			return uidNext;
+		}
+		return getHighestUid() + 1;
+	}
+
+	/**
+	 * Asks the server for the number of messages and UIDNEXT of the folder,
+	 * the answer updates the folder state. This is meant for servers that
+	 * can't notify changes with IDLE.
+	 */
+	public void checkStatus() throws MessagingException {
+		checkOpen();
+		try {
+			executeSimpleCommand(String.format("STATUS %s (MESSAGES UIDNEXT)",
+					ImapUtility.encodeString(ImapUtility
+							.encodeFolderName(mName.getPrefixedName()))));
+		} catch (IOException ioe) {
+			throw ioExceptionHandler(mConnection, ioe);
+		}
+	}
+
 	public void delete(boolean recurse) throws MessagingException {
 		throw new Error("ImapStore.delete() not yet implemented");
 	}
@@ -635,7 +893,7 @@ public class ImapSession {
 			for (ImapResponse response : responses) {
 				if (response.mTag == null) {
 					if (ImapResponseParser.equalsIgnoreCase(response.get(0),
-							"SEARCH")) {
+							ImapKeywords.SEARCH)) {
 						for (int i = 1, count = response.size(); i < count; i++) {
 							uids.add(response.getLong(i));
 						}
@@ -683,7 +941,7 @@ public class ImapSession {
 				ArrayList<Long> tempUids = new ArrayList<Long>();
 				for (ImapResponse response : responses) {
 					if (ImapResponseParser.equalsIgnoreCase(response.get(0),
-							"SEARCH")) {
+							ImapKeywords.SEARCH)) {
 						for (int i = 1, count = response.size(); i < count; i++) {
 							tempUids.add(response.getLong(i));
 						}
@@ -756,106 +1014,79 @@ public class ImapSession {
 			fetchFields.add("BODY.PEEK[]");
 		}
 
-		for (int windowStart = 0; windowStart < messages.length; windowStart += (ImapStore.FETCH_WINDOW_SIZE)) {
-			List<Long> uidWindow = uids.subList(windowStart, Math.min(
-					(windowStart + ImapStore.FETCH_WINDOW_SIZE),
-					messages.length));
+		/*
+		 * The attributes are stored into the messages by the handler while
+		 * the FETCH responses are parsed, no intermediate list is built.
+		 */
+		FetchMessageHandler handler = new FetchMessageHandler(messageMap,
+				mPermanentFlagsIndex, listener, getLogId());
 
-			try {
-				mConnection
+		try {
+			/*
+			 * The commands for all the windows are sent at once, the server
+			 * answers them one after the other without waiting for a round trip
+			 * between the windows.
+			 */
+			Set<String> tags = new HashSet<String>();
+			
+			for (int windowStart = 0; windowStart < messages.length; windowStart += (ImapStore.FETCH_WINDOW_SIZE)) {
+				List<Long> uidWindow = uids.subList(windowStart, Math.min(
+						(windowStart + ImapStore.FETCH_WINDOW_SIZE),
+						messages.length));
+
+				tags.add(mConnection
 						.sendCommand(String.format("UID FETCH %s (%s)",
 								ImapUtility.combine(uidWindow
 										.toArray(new Long[uidWindow.size()]),
 										','), ImapUtility.combine(
 										fetchFields
 												.toArray(new String[fetchFields
-														.size()]), ' ')), false);
-				ImapResponse response;
-				int messageNumber = 0;
-
-				IImapResponseCallback callback = null;
-				if (fp.contains(FetchProfile.Item.BODY)
-						|| fp.contains(FetchProfile.Item.BODY_SANE)) {
-					callback = new FetchBodyCallback(messageMap);
-				}
-
-				do {
-					response = mConnection.readResponse(callback);
-
-					if (response.mTag == null
-							&& ImapResponseParser.equalsIgnoreCase(
-									response.get(1), "FETCH")) {
-						ImapList fetchList = (ImapList) response
-								.getKeyedValue("FETCH");
-						Long uid = fetchList.getKeyedNumber("UID");
-						long msgSeq = response.getLong(0);
-						if (uid != null) {
-							try {
-								
-								if (ImapStore.DEBUG) {
-									Log.v(ImapStore.LOG_TAG, "Stored uid '"
-											+ uid + "' for msgSeq " + msgSeq
-											+ " into map " /*
-															 * +
-															 * msgSeqUidMap.toString
-															 * ()
-															 */);
-								}
-							} catch (Exception e) {
-								Log.e(ImapStore.LOG_TAG,
-										"Unable to store uid '" + uid
-												+ "' for msgSeq " + msgSeq);
-							}
-						}
-
-						ImapMessage message = messageMap.get(uid);
-						if (message == null) {
-							if (ImapStore.DEBUG)
-								Log.d(ImapStore.LOG_TAG,
-										"Do not have message in messageMap for UID "
-												+ uid + " for " + getLogId());
+														.size()]), ' ')), false));
+			}
+			
+			// the responses to all the windows are read even if one of them
+			// can't be stored, otherwise they would be left on the connection
+			MessagingException error = null;
+			
+			while (!tags.isEmpty()) {
+				ImapResponse response = mConnection.readResponse(null, handler);
 
-							mState.handleUntaggedResponse(response);
-							continue;
-						}
-						if (listener != null) {
-							listener.messageStarted(uid, messageNumber++,
-									messageMap.size());
+				if (response.mTag != null) {
+					if (!tags.remove(response.mTag)) {
+						Log.w(ImapStore.LOG_TAG, "Got tag response from previous command "
+								+ response + " for " + getLogId());
+					}
+				} else if (ImapResponseParser.equalsIgnoreCase(
+								response.get(1), ImapKeywords.FETCH)) {
+
+					try {
+						handler.checkError();
+					} catch (MessagingException me) {
+						if (error == null) {
+							error = me;
 						}
+						continue;
+					}
 
-						ImapMessage imapMessage = (ImapMessage) message;
-
-						Object literal = handleFetchResponse(imapMessage,
-								fetchList);
-
-						if (literal != null) {
-							if (literal instanceof String) {
-								String bodyString = (String) literal;
-								InputStream bodyStream = new ByteArrayInputStream(
-										bodyString.getBytes());
-								imapMessage.parse(bodyStream);
-							} else if (literal instanceof Integer) {
-								// All the work was done in
-								// FetchBodyCallback.foundLiteral()
-							} else {
-								// This shouldn't happen
-								throw new MessagingException(
-										"Got FETCH response with bogus parameters");
-							}
-						}
+					if (handler.getMessage() == null) {
+						if (ImapStore.DEBUG)
+							Log.d(ImapStore.LOG_TAG,
+									"Do not have message in messageMap for UID "
+											+ handler.getUid() + " for " + getLogId());
 
-						if (listener != null) {
-							listener.messageFinished(message, messageNumber,
-									messageMap.size());
-						}
-					} else {
 						mState.handleUntaggedResponse(response);
 					}
+				} else {
+					mState.handleUntaggedResponse(response);
+				}
 
-				} while (response.mTag == null);
-			} catch (IOException ioe) {
-				throw ioExceptionHandler(mConnection, ioe);
 			}
+			
+			if (error != null) {
+				throw error;
+			}
+		} catch (IOException ioe) {
+			throw ioExceptionHandler(mConnection, ioe);
 		}
 	}
 
@@ -893,17 +1124,15 @@ public class ImapSession {
 			ImapResponse response;
 			int messageNumber = 0;
 
-			IImapResponseCallback callback = new FetchPartCallback(part);
+			FetchPartCallback callback = new FetchPartCallback(part, message.getUid());
 
 			do {
-				response = mConnection.readResponse(callback);
+				response = mConnection.readResponse(null, callback);
 
 				if ((response.mTag == null)
 						&& (ImapResponseParser.equalsIgnoreCase(
-								response.get(1), "FETCH"))) {
-					ImapList fetchList = (ImapList) response
-							.getKeyedValue("FETCH");
-					Long uid = fetchList.getKeyedNumber("UID");
+								response.get(1), ImapKeywords.FETCH))) {
+					long uid = callback.getUid();
 
 					if (message.getUid() != uid) {
 						if (ImapStore.DEBUG)
@@ -915,62 +1144,6 @@ public class ImapSession {
 					}
 					if (listener != null) {
 						listener.messageStarted(uid, messageNumber++, 1);
-					}
-
-					ImapMessage imapMessage = (ImapMessage) message;
-
-					Object literal = handleFetchResponse(imapMessage, fetchList);
-
-					if (literal != null) {
-						if (literal instanceof Body) {
-							// Most of the work was done in
-							// FetchAttchmentCallback.foundLiteral()
-
-							if (part.getBody() != null) {
-								part.removeBody().dispose();
-							}
-
-							part.setBody((Body) literal);
-
-						} else if (literal instanceof String) {
-
-							String bodyString = (String) literal;
-
-							InputStream bodyStream = new ByteArrayInputStream(
-									bodyString.getBytes());
-
-							StorageBodyFactory bodyFactory = new StorageBodyFactory();
-
-							String transferEncoding = part
-									.getContentTransferEncoding();
-
-							InputStream stream = bodyStream;
-
-							if (MimeUtil.isBase64Encoding(transferEncoding)) {
-								stream = new Base64InputStream(bodyStream,
-										DecodeMonitor.SILENT);
-							} else if (MimeUtil
-									.isQuotedPrintableEncoded(transferEncoding)) {
-								stream = new QuotedPrintableInputStream(
-										bodyStream, DecodeMonitor.SILENT);
-							}
-
-							TextBody body = bodyFactory.textBody(stream);
-
-							if (part.getBody() != null) {
-								part.removeBody().dispose();
-							}
-
-							part.setBody(body);
-
-						} else {
-							// This shouldn't happen
-							throw new MessagingException(
-									"Got FETCH response with bogus parameters");
-						}
-					}
-
-					if (listener != null) {
 						listener.messageFinished(message, messageNumber, 1);
 					}
 				} else {
@@ -983,268 +1156,6 @@ public class ImapSession {
 		}
 	}
 
-	// Returns value of body field
-	private Object handleFetchResponse(ImapMessage message, ImapList fetchList)
-			throws MessagingException {
-		Object result = null;
-		if (fetchList.containsKey("FLAGS")) {
-			ImapList flags = fetchList.getKeyedList("FLAGS");
-			if (flags != null) {
-				for (int i = 0, count = flags.size(); i < count; i++) {
-					String flag = flags.getString(i);
-					if (flag.equalsIgnoreCase("\\Deleted")) {
-						message.setFlagInternal(Flag.DELETED, true);
-					} else if (flag.equalsIgnoreCase("\\Answered")) {
-						message.setFlagInternal(Flag.ANSWERED, true);
-					} else if (flag.equalsIgnoreCase("\\Seen")) {
-						message.setFlagInternal(Flag.SEEN, true);
-					} else if (flag.equalsIgnoreCase("\\Flagged")) {
-						message.setFlagInternal(Flag.FLAGGED, true);
-					} else if (flag.equalsIgnoreCase("$Forwarded")) {
-						message.setFlagInternal(Flag.FORWARDED, true);
-						/*
-						 * a message contains FORWARDED FLAG -> so we can also
-						 * create them
-						 */
-						mPermanentFlagsIndex.add(Flag.FORWARDED);
-					}
-				}
-			}
-		}
-
-		if (fetchList.containsKey("INTERNALDATE")) {
-			Date internalDate = fetchList.getKeyedDate("INTERNALDATE");
-			message.setInternalDate(internalDate);
-		}
-
-		if (fetchList.containsKey("RFC822.SIZE")) {
-			long size = fetchList.getKeyedNumber("RFC822.SIZE");
-			message.setSize(size);
-		}
-
-		if (fetchList.containsKey("BODYSTRUCTURE")) {
-			ImapList bs = fetchList.getKeyedList("BODYSTRUCTURE");
-			if (bs != null) {
-				try {
-					parseBodyStructure(bs, message, "TEXT");
-				} catch (MessagingException e) {
-					if (ImapStore.DEBUG)
-						Log.d(ImapStore.LOG_TAG, "Error handling message for "
-								+ getLogId(), e);
-					message.setBody(null);
-				}
-			}
-		}
-
-		if (fetchList.containsKey("BODY")) {
-			int index = fetchList.getKeyIndex("BODY") + 2;
-			int size = fetchList.size();
-			if (index < size) {
-				result = fetchList.getObject(index);
-
-				// Check if there's an origin octet
-				if (result instanceof String) {
-					String originOctet = (String) result;
-					if (originOctet.startsWith("<") && (index + 1) < size) {
-						result = fetchList.getObject(index + 1);
-					}
-				}
-			}
-		}
-
-		return result;
-	}
-
-
-	private void parseBodyStructure(ImapList bs, Entity part, String id)
-			throws MessagingException {
-
-		if (bs.get(0) instanceof ImapList) {
-
-			/*
-			 * This is a multipart/*
-			 */
-
-			String subType = null;
-
-			ArrayList<BodyPart> parts = new ArrayList<BodyPart>();
-
-			for (int i = 0, count = bs.size(); i < count; i++) {
-				if (bs.get(i) instanceof ImapList) {
-					/*
-					 * For each part in the message we're going to add a new
-					 * BodyPart and parse into it.
-					 */
-
-					BodyPart bp = new BodyPart();
-					if (id.equalsIgnoreCase("TEXT")) {
-						parseBodyStructure(bs.getList(i), bp,
-								Integer.toString(i + 1));
-					} else {
-						parseBodyStructure(bs.getList(i), bp, id + "."
-								+ (i + 1));
-					}
-					parts.add(bp);
-				} else {
-					/*
-					 * We've got to the end of the children of the part, so now
-					 * we can find out what type it is and bail out.
-					 */
-					subType = bs.getString(i).toLowerCase(Locale.US);
-					break;
-				}
-			}
-
-			if (subType == null)
-				return;
-
-			Multipart mp = new MultipartImpl(subType);
-
-			for (BodyPart bp : parts) {
-				mp.addBodyPart(bp);
-			}
-
-			if (part.getBody() != null) {
-				part.removeBody().dispose();
-			}
-
-			part.setBody(mp);
-
-		} else {
-			/*
-			 * This is a body. We need to add as much information as we can find
-			 * out about it to the Part.
-			 */
-
-			/*
-			 * 0| 0 body type 1| 1 body subtype 2| 2 body parameter
-			 * parenthesized list 3| 3 body id (unused) 4| 4 body description
-			 * (unused) 5| 5 body encoding 6| 6 body size -| 7 text lines (only
-			 * for type TEXT, unused) Extensions (optional): 7| 8 body MD5
-			 * (unused) 8| 9 body disposition 9|10 body language (unused) 10|11
-			 * body location (unused)
-			 */
-
-			String type = bs.getString(0);
-			String subType = bs.getString(1);
-			String mimeType = (type + "/" + subType).toLowerCase(Locale.US);
-
-			ImapList bodyParams = null;
-			if (bs.get(2) instanceof ImapList) {
-				bodyParams = bs.getList(2);
-			}
-			String encoding = bs.getString(5);
-			int size = bs.getNumber(6);
-
-			if (MimeUtil.isSameMimeType(mimeType, "message/rfc822")) {
-				// A body type of type MESSAGE and subtype RFC822
-				// contains, immediately after the basic fields, the
-				// envelope structure, body structure, and size in
-				// text lines of the encapsulated message.
-				// [MESSAGE, RFC822, [NAME, Fwd: [#HTR-517941]: update plans at
-				// 1am Friday - Memory allocation - displayware.eml], NIL, NIL,
-				// 7BIT, 5974, NIL, [INLINE, [FILENAME*0, Fwd: [#HTR-517941]:
-				// update plans at 1am Friday - Memory all, FILENAME*1, ocation
-				// - displayware.eml]], NIL]
-				/*
-				 * This will be caught by fetch and handled appropriately.
-				 */
-				throw new MessagingException(
-						"BODYSTRUCTURE message/rfc822 not yet supported.");
-			}
-
-			/*
-			 * Set the content type with as much information as we know right
-			 * now.
-			 */
-			StringBuilder contentType = new StringBuilder();
-			contentType.append(mimeType);
-
-			if (bodyParams != null) {
-				/*
-				 * If there are body params we might be able to get some more
-				 * information out of them.
-				 */
-				for (int i = 0, count = bodyParams.size(); i < count; i += 2) {
-					contentType.append(String.format(";\r\n %s=\"%s\"",
-							bodyParams.getString(i),
-							bodyParams.getString(i + 1)));
-				}
-			}
-
-			if (part.getHeader() == null)
-				part.setHeader(new HeaderImpl());
-
-			part.getHeader().addField(
-					Fields.contentType(contentType.toString()));
-
-			// Extension items
-			ImapList bodyDisposition = null;
-			if (("text".equalsIgnoreCase(type)) && (bs.size() > 9)
-					&& (bs.get(9) instanceof ImapList)) {
-				bodyDisposition = bs.getList(9);
-			} else if (!("text".equalsIgnoreCase(type)) && (bs.size() > 8)
-					&& (bs.get(8) instanceof ImapList)) {
-				bodyDisposition = bs.getList(8);
-			}
-
-			StringBuilder contentDisposition = new StringBuilder();
-
-			if (bodyDisposition != null && !bodyDisposition.isEmpty()) {
-				if (!"NIL".equalsIgnoreCase(bodyDisposition.getString(0))) {
-					contentDisposition.append(bodyDisposition.getString(0)
-							.toLowerCase(Locale.US));
-				}
-
-				if ((bodyDisposition.size() > 1)
-						&& (bodyDisposition.get(1) instanceof ImapList)) {
-					ImapList bodyDispositionParams = bodyDisposition.getList(1);
-					/*
-					 * If there is body disposition information we can pull some
-					 * more information about the attachment out.
-					 */
-					for (int i = 0, count = bodyDispositionParams.size(); i < count; i += 2) {
-						contentDisposition.append(String.format(
-								";\r\n %s=\"%s\"", bodyDispositionParams
-										.getString(i).toLowerCase(Locale.US),
-								bodyDispositionParams.getString(i + 1)));
-					}
-				}
-			}
-
-			ContentDispositionField contentDispositionField = Fields
-					.contentDisposition(contentDisposition.toString());
-
-			if (contentDispositionField
-					.getParameter(ContentDispositionField.PARAM_SIZE) == null) {
-				contentDisposition.append(String.format(Locale.US,
-						";\r\n size=%d", size));
-				contentDispositionField = Fields
-						.contentDisposition(contentDisposition.toString());
-			}
-
-			/*
-			 * Set the content disposition containing at least the size.
-			 * Attachment handling code will use this down the road.
-			 */
-			part.getHeader().addField(contentDispositionField);
-
-			/*
-			 * Set the Content-Transfer-Encoding header. Attachment code will
-			 * use this to parse the body.
-			 */
-			part.getHeader().addField(Fields.contentTransferEncoding(encoding));
-
-			part.getHeader()
-					.addField(
-							new RawField(
-									ImapStore.HEADER_ANDROID_ATTACHMENT_STORE_DATA,
-									id));
-
-		}
-
-	}
-
 	/**
 	 * Appends the given messages to the selected folder.
 	 * 
@@ -1371,7 +1282,7 @@ public class ImapSession {
 			for (ImapResponse response1 : responses) {
 				if (response1.mTag == null
 						&& ImapResponseParser.equalsIgnoreCase(
-								response1.get(0), "SEARCH")
+								response1.get(0), ImapKeywords.SEARCH)
 						&& response1.size() > 1) {
 					return response1.getLong(1);
 				}
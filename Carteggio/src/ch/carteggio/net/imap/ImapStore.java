@@ -34,6 +34,7 @@ import android.util.Log;
 import ch.carteggio.net.MessagingException;
 import ch.carteggio.net.imap.ImapConnection.ImapServerSettings;
 import ch.carteggio.net.imap.ImapSession.FolderType;
+import ch.carteggio.net.imap.parsing.ImapKeywords;
 import ch.carteggio.net.imap.parsing.ImapList;
 import ch.carteggio.net.imap.parsing.ImapResponse;
 import ch.carteggio.net.imap.parsing.ImapResponseParser;
@@ -58,6 +59,11 @@ public class ImapStore {
 	
     protected static final int SOCKET_CONNECT_TIMEOUT = 30000;
     protected static final int SOCKET_READ_TIMEOUT = 60000;
+
+    /**
+     * Size of the buffer used to read the responses, large enough for a whole TLS record.
+     */
+    static final int READ_BUFFER_SIZE = 16 * 1024;
     
 	public static final String STORE_TYPE = "IMAP";
 
@@ -68,17 +74,41 @@ public class ImapStore {
 
     static int FETCH_WINDOW_SIZE = 100;
 
+    /**
+     * Maximum number of idle connections kept in the pool.
+     */
+    static final int POOL_MAX_SIZE = 3;
+
+    /**
+     * Pooled connections that have been idle for longer than this are probed with
+     * a NOOP before being reused.
+     */
+    static final long POOL_PROBE_IDLE_TIME = 60 * 1000;
+
+    /**
+     * Pooled connections that have been idle for longer than this are closed.
+     */
+    static final long POOL_EVICT_IDLE_TIME = 5 * 60 * 1000;
+
     static final String CAPABILITY_IDLE = "IDLE";
     static final String CAPABILITY_AUTH_CRAM_MD5 = "AUTH=CRAM-MD5";
     static final String CAPABILITY_AUTH_PLAIN = "AUTH=PLAIN";
     static final String CAPABILITY_LOGINDISABLED = "LOGINDISABLED";
+    static final String CAPABILITY_SASL_IR = "SASL-IR";
     static final String COMMAND_IDLE = "IDLE";
     static final String CAPABILITY_NAMESPACE = "NAMESPACE";
-    static final String COMMAND_NAMESPACE = "NAMESPACE";
+    static final String COMMAND_NAMESPACE = ImapKeywords.NAMESPACE;
 
-    static final String CAPABILITY_CAPABILITY = "CAPABILITY";
+    static final String CAPABILITY_CAPABILITY = ImapKeywords.CAPABILITY;
     static final String COMMAND_CAPABILITY = "CAPABILITY";
 
+    static final String CAPABILITY_CONDSTORE = "CONDSTORE";
+    static final String CAPABILITY_QRESYNC = "QRESYNC";
+    static final String COMMAND_ENABLE_QRESYNC = "ENABLE QRESYNC";
+
+    static final String CAPABILITY_MOVE = "MOVE";
+    static final String CAPABILITY_UIDPLUS = "UIDPLUS";
+
     static final String CAPABILITY_COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
     static final String COMMAND_COMPRESS_DEFLATE = "COMPRESS DEFLATE";
 
@@ -100,8 +130,21 @@ public class ImapStore {
     
     private ImapServerSettings mSettings = new ImapServerSettings();
 
+    /**
+     * The idle connections, the most recently used first.
+     */
     private LinkedList<ImapConnection> mConnections = new LinkedList<ImapConnection>();
 
+    private int mPoolHits;
+    private int mPoolMisses;
+    private int mPoolEvictions;
+
+    /*
+     * What the connections dropped from the pool transferred while compressed.
+     */
+    private long mCompressedBytes;
+    private long mUncompressedBytes;
+
 
     /**
      * Cache of ImapFolder objects. ImapFolders are attached to a given folder on the server
@@ -111,6 +154,11 @@ public class ImapStore {
      */
     private HashMap<String, ImapSession> mSessionCache = new HashMap<String, ImapSession>();
 
+    /**
+     * What is known about the folders on the server, by folder name.
+     */
+    private HashMap<String, ImapFolderMetadata> mFolderMetadata = new HashMap<String, ImapFolderMetadata>();
+
     public ImapStore(Context context, String accountUri, ImapPreferences preferences, String password) throws MessagingException {
     
     	mContext = context;
@@ -119,6 +167,9 @@ public class ImapStore {
         
         mPreferences = preferences;
         
+        mSettings.mCompressionOnMobile = preferences.useCompressionOnMobile();
+        mSettings.mCompressionOnWifi = preferences.useCompressionOnWifi();
+        
         try {
             imapUri = new URI(accountUri);
         } catch (URISyntaxException use) {
@@ -224,6 +275,21 @@ public class ImapStore {
         return folder;
     }
 
+    /**
+     * Returns the metadata of a folder, that is empty until something is
+     * learned about the folder.
+     */
+    ImapFolderMetadata getFolderMetadata(String name) {
+        synchronized (mFolderMetadata) {
+            ImapFolderMetadata metadata = mFolderMetadata.get(name);
+            if (metadata == null) {
+                metadata = new ImapFolderMetadata(name);
+                mFolderMetadata.put(name, metadata);
+            }
+            return metadata;
+        }
+    }
+
     String getCombinedPrefix() {
         if (mSettings.mCombinedPrefix == null) {
             if (mSettings.mPathPrefix != null) {
@@ -247,7 +313,17 @@ public class ImapStore {
     public List <ImapSession> getPersonalNamespaces(boolean forceListAll) throws MessagingException {
         ImapConnection connection = getConnection();
         try {
-            List <ImapSession > allFolders = listFolders(connection, false);
+            List <ImapSession > allFolders;
+            boolean retry = connection.isReusedWithoutResponse();
+            try {
+                allFolders = listFolders(connection, false);
+            } catch (IOException ioe) {
+                if (!retry) {
+                    throw ioe;
+                }
+                // the pooled connection was dropped, try again on a new one
+                allFolders = listFolders(connection, false);
+            }
             if (forceListAll) {
                 return allFolders;
             } else {
@@ -277,20 +353,43 @@ public class ImapStore {
 
 	public boolean createFolder(String name, FolderType type) throws MessagingException {
 		
+		try {
+			createRemoteFolder(name);
+			return true;
+		} catch (ImapException ie) {
+			// We got a response, but it was not "OK"
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates a folder on the server.
+	 * 
+	 * @throws ImapException if the server refused to create the folder.
+	 */
+	void createRemoteFolder(String name) throws MessagingException {
+		
 		String prefixedName = getCombinedPrefix();
 
 		prefixedName += name;
 		
 		ImapConnection connection = getConnection();
 
+		String command = String.format("CREATE %s", ImapUtility.encodeString(
+				ImapUtility.encodeFolderName(prefixedName)));
+		
 		try {
-			connection.executeSimpleCommand(String.format("CREATE %s",
-					ImapUtility.encodeString(ImapUtility
-							.encodeFolderName(prefixedName))));
-			return true;
-		} catch (ImapException ie) {
-			// We got a response, but it was not "OK"
-			return false;
+			boolean retry = connection.isReusedWithoutResponse();
+			try {
+				connection.executeSimpleCommand(command);
+			} catch (IOException ioe) {
+				if (!retry) {
+					throw ioe;
+				}
+				// the pooled connection was dropped, try again on a new one
+				connection.executeSimpleCommand(command);
+			}
+			getFolderMetadata(name).setExists(true);
 		} catch (IOException ioe) {
 			
 			throw new MessagingException("IO Error", ioe);
@@ -301,7 +400,7 @@ public class ImapStore {
     
 
     private List <ImapSession> listFolders(ImapConnection connection, boolean LSUB) throws IOException, MessagingException {
-        String commandResponse = LSUB ? "LSUB" : "LIST";
+        String commandResponse = LSUB ? ImapKeywords.LSUB : ImapKeywords.LIST;
 
         LinkedList<ImapSession> folders = new LinkedList<ImapSession>();
 
@@ -356,12 +455,19 @@ public class ImapStore {
                 ImapList attributes = response.getList(1);
                 for (int i = 0, count = attributes.size(); i < count; i++) {
                     String attribute = attributes.getString(i);
-                    if (attribute.equalsIgnoreCase("\\NoSelect")) {
+                    if (ImapResponseParser.equalsIgnoreCase(attribute, ImapKeywords.FLAG_NOSELECT)) {
                         includeFolder = false;
                     }
                 }
                 if (includeFolder) {
                     folders.add(getSession(folder));
+                    
+                    if (!LSUB) {
+                        ImapFolderMetadata metadata = getFolderMetadata(folder);
+                        metadata.setExists(true);
+                        metadata.setEncodedName(ImapUtility.encodeString(response.getString(3)));
+                        metadata.setDelimiter(response.getString(2));
+                    }
                 }
             }
         }
@@ -426,31 +532,130 @@ public class ImapStore {
 
     /**
      * Gets a connection if one is available for reuse, or creates a new one if not.
-     * @return
+     * 
+     * Pooled connections that have been idle for a short time are returned
+     * without a round trip, the caller sends its first command again on a new
+     * connection if it fails before any response is received, see
+     * {@link ImapConnection#isReusedWithoutResponse()}. The others are checked
+     * with a NOOP and closed if it fails.
      */
     ImapConnection getConnection() throws MessagingException {
         synchronized (mConnections) {
+            evictIdleConnections();
             ImapConnection connection = null;
             while ((connection = mConnections.poll()) != null) {
+                if (!connection.isOpen()) {
+                    mPoolEvictions++;
+                    discardConnection(connection);
+                    continue;
+                }
+                if (connection.getIdleTime() < POOL_PROBE_IDLE_TIME) {
+                    connection.markReused();
+                    break;
+                }
                 try {
                     connection.executeSimpleCommand("NOOP");
                     break;
                 } catch (IOException ioe) {
-                    connection.close();
+                    mPoolEvictions++;
+                    discardConnection(connection);
+                } catch (MessagingException me) {
+                    mPoolEvictions++;
+                    discardConnection(connection);
                 }
             }
             if (connection == null) {
+                mPoolMisses++;
                 connection = new ImapConnection(mContext, mSettings);
+            } else {
+                mPoolHits++;
             }
             return connection;
         }
     }
 
     void releaseConnection(ImapConnection connection) {
-        if (connection != null && connection.isOpen()) {
-            synchronized (mConnections) {
-                mConnections.offer(connection);
+        if (connection == null) {
+            return;
+        }
+        synchronized (mConnections) {
+            if (!connection.isOpen()) {
+                discardConnection(connection);
+                return;
+            }
+            mConnections.addFirst(connection);
+            while (mConnections.size() > POOL_MAX_SIZE) {
+                mPoolEvictions++;
+                discardConnection(mConnections.removeLast());
+            }
+        }
+    }
+
+    /**
+     * Closes a connection that won't be pooled anymore and keeps what it
+     * transferred for {@link #getCompressionRatio()}.
+     */
+    private void discardConnection(ImapConnection connection) {
+        connection.close();
+        mCompressedBytes += connection.getCompressedBytes();
+        mUncompressedBytes += connection.getUncompressedBytes();
+    }
+
+    /**
+     * Closes the pooled connections that have been idle for too long, the server
+     * or a NAT box on the way has probably dropped them already.
+     */
+    private void evictIdleConnections() {
+        ImapConnection connection;
+        while ((connection = mConnections.peekLast()) != null
+                && connection.getIdleTime() >= POOL_EVICT_IDLE_TIME) {
+            mPoolEvictions++;
+            discardConnection(mConnections.removeLast());
+        }
+    }
+
+    /**
+     * Returns the number of times {@link #getConnection()} reused a pooled connection.
+     */
+    public int getPoolHits() {
+        synchronized (mConnections) {
+            return mPoolHits;
+        }
+    }
+
+    /**
+     * Returns the number of times {@link #getConnection()} had to create a connection.
+     */
+    public int getPoolMisses() {
+        synchronized (mConnections) {
+            return mPoolMisses;
+        }
+    }
+
+    /**
+     * Returns the number of pooled connections closed because they were idle for too
+     * long, didn't fit in the pool or were found closed.
+     */
+    public int getPoolEvictions() {
+        synchronized (mConnections) {
+            return mPoolEvictions;
+        }
+    }
+
+    /**
+     * Returns the ratio between the uncompressed and the compressed bytes
+     * transferred by the connections once they are back in the pool, 1 if
+     * none of them was compressed.
+     */
+    public float getCompressionRatio() {
+        synchronized (mConnections) {
+            long compressed = mCompressedBytes;
+            long uncompressed = mUncompressedBytes;
+            for (ImapConnection connection : mConnections) {
+                compressed += connection.getCompressedBytes();
+                uncompressed += connection.getUncompressedBytes();
             }
+            return compressed == 0 ? 1f : (float) uncompressed / compressed;
         }
     }
 
@@ -133,6 +133,38 @@ public class ImapUtility {
         return list;
     }
 
+    /**
+     * Counts the IDs of a sequence set without expanding its ranges, invalid items
+     * are ignored like in {@link #getImapSequenceValues(String)}.
+     */
+    public static long getImapSequenceSize(String set) {
+        long size = 0;
+        if (set != null) {
+            for (String item : set.split(",")) {
+                int colonPos = item.indexOf(':');
+                if (colonPos == -1) {
+                    if (isNumberValid(item)) {
+                        size++;
+                    }
+                } else if (colonPos > 0) {
+                    try {
+                        long first  = Long.parseLong(item.substring(0, colonPos));
+                        long second = Long.parseLong(item.substring(colonPos + 1));
+                        if (is32bitValue(first) && is32bitValue(second)) {
+                            size += Math.abs(second - first) + 1;
+                        } else {
+                            Log.d(LOG_TAG, "Invalid range: " + item);
+                        }
+                    } catch (NumberFormatException e) {
+                        Log.d(LOG_TAG, "Invalid range value: " + item, e);
+                    }
+                }
+            }
+        }
+
+        return size;
+    }
+
     private static boolean isNumberValid(String number) {
         try {
             long value = Long.parseLong(number);
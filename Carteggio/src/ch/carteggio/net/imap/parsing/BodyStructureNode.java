@@ -0,0 +1,74 @@
+/*   
+ * Copyright (c) 2014, Lorenzo Keller
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ *    
+ */
+
+package ch.carteggio.net.imap.parsing;
+
+import java.util.List;
+
+/**
+ * 
+ * A single node of a BODYSTRUCTURE attribute as reported to an {@link IImapFetchCallback}.
+ * 
+ * Strings are reported as they are sent by the server, NIL atoms included. Only the fields
+ * we use are parsed, the other ones are skipped.
+ * 
+ */
+public class BodyStructureNode {
+
+	/**
+	 * The identifier of the part, "TEXT" for the root node, otherwise the part 
+	 * number as used in BODY[section], for instance "1" or "2.1".
+	 */
+	public String mPartId;
+
+	public boolean mMultipart;
+	
+	/**
+	 * For multipart nodes, the number of children that were reported
+	 * immediately before this node.
+	 */
+	public int mChildCount;
+
+	public String mType;
+	public String mSubType;
+
+	/**
+	 * Alternating names and values of the body parameters or null.
+	 */
+	public List<String> mParameters;
+
+	public String mEncoding;
+	public int mSize;
+
+	/**
+	 * The disposition type or null if the body has no disposition.
+	 */
+	public String mDisposition;
+
+	/**
+	 * Alternating names and values of the disposition parameters or null.
+	 */
+	public List<String> mDispositionParameters;
+
+	public BodyStructureNode(String partId, boolean multipart) {
+		mPartId = partId;
+		mMultipart = multipart;
+	}
+
+	public boolean isRoot() {
+		return "TEXT".equals(mPartId);
+	}
+	
+}
@@ -26,6 +26,9 @@ import org.apache.james.mime4j.codec.DecodeMonitor;
 import org.apache.james.mime4j.codec.QuotedPrintableInputStream;
 import org.apache.james.mime4j.dom.Entity;
 import org.apache.james.mime4j.dom.TextBody;
+import org.apache.james.mime4j.storage.DefaultStorageProvider;
+import org.apache.james.mime4j.storage.Storage;
+import org.apache.james.mime4j.storage.StorageOutputStream;
 import org.apache.james.mime4j.storage.StorageBodyFactory;
 import org.apache.james.mime4j.util.MimeUtil;
 
@@ -36,43 +39,111 @@ import ch.carteggio.net.FixedLengthInputStream;
  * This class is used to process the response when we want to download a message part
  * 
  * The {@link ImapResponseParser} instance used to parse the response is calling back
- * this class every time it encounters a literal. This class checks if the literal is a
- * body part and if it is the case it stores it in the {@link Entity} that it received
- * as parameter of its constructor.
+ * this class for every attribute of the FETCH response. When the body section arrives
+ * for the requested UID it is decoded and stored in the {@link Entity} that this class
+ * received as parameter of its constructor. A body section reported before the UID
+ * is kept in a {@link Storage} until the UID is known.
  * 
  */
 
-public class FetchPartCallback implements IImapResponseCallback {
+public class FetchPartCallback implements IImapFetchCallback {
     private Entity mPart;
+    private long mRequestedUid;
+    private long mUid;
+    private Storage mPendingLiteral;
 
-    public FetchPartCallback(Entity part) {
+    public FetchPartCallback(Entity part, long requestedUid) {
         mPart = part;
+        mRequestedUid = requestedUid;
+    }
+
+    /**
+     * Returns the UID reported by the last FETCH response.
+     */
+    public long getUid() {
+        return mUid;
+    }
+
+    @Override
+    public void onFetchStart(long messageNumber) {
+        mUid = -1;
+        releasePending();
     }
 
     @Override
-    public Object foundLiteral(ImapResponse response,
-                               FixedLengthInputStream literal) throws IOException, Exception {
-        if (response.mTag == null &&
-                ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
-            //TODO: check for correct UID
-        	
-            StorageBodyFactory bodyFactory = new StorageBodyFactory();
-    		
-            String transferEncoding = mPart.getContentTransferEncoding();
-            
-            InputStream stream = literal;
-            
-            if (MimeUtil.isBase64Encoding(transferEncoding)) {
-                stream = new Base64InputStream(literal, DecodeMonitor.SILENT);
-            } else if (MimeUtil.isQuotedPrintableEncoded(transferEncoding)) {
-                stream = new QuotedPrintableInputStream(literal, DecodeMonitor.SILENT);
+    public void onUid(long uid) throws IOException {
+        mUid = uid;
+
+        if (mPendingLiteral != null) {
+            try {
+                if (mUid == mRequestedUid) {
+                    setBody(mPendingLiteral.getInputStream());
+                }
+            } finally {
+                releasePending();
             }
-            
-    		TextBody body = bodyFactory.textBody(stream);        	
-                            
-            return body;
         }
-        
-        return null;
     }
-}
\ No newline at end of file
+
+    @Override
+    public void onFlag(String flag) {
+    }
+
+    @Override
+    public void onInternalDate(String internalDate) {
+    }
+
+    @Override
+    public void onSize(long size) {
+    }
+
+    @Override
+    public void onBodyStructureNode(BodyStructureNode node) {
+    }
+
+    @Override
+    public void onLiteral(String section, FixedLengthInputStream literal) throws IOException {
+        if (mUid == -1) {
+            releasePending();
+            StorageOutputStream out = DefaultStorageProvider.getInstance().createStorageOutputStream();
+            literal.copyRemaining(out);
+            mPendingLiteral = out.toStorage();
+        } else if (mUid == mRequestedUid) {
+            setBody(literal);
+        }
+    }
+
+    private void setBody(InputStream literal) throws IOException {
+        StorageBodyFactory bodyFactory = new StorageBodyFactory();
+
+        String transferEncoding = mPart.getContentTransferEncoding();
+
+        InputStream stream = literal;
+
+        if (MimeUtil.isBase64Encoding(transferEncoding)) {
+            stream = new Base64InputStream(literal, DecodeMonitor.SILENT);
+        } else if (MimeUtil.isQuotedPrintableEncoded(transferEncoding)) {
+            stream = new QuotedPrintableInputStream(literal, DecodeMonitor.SILENT);
+        }
+
+        TextBody body = bodyFactory.textBody(stream);
+
+        if (mPart.getBody() != null) {
+            mPart.removeBody().dispose();
+        }
+
+        mPart.setBody(body);
+    }
+
+    @Override
+    public void onFetchEnd() {
+        releasePending();
+    }
+
+    private void releasePending() {
+        if (mPendingLiteral != null) {
+            mPendingLiteral.delete();
+            mPendingLiteral = null;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*   
+ * Copyright (c) 2014, Lorenzo Keller
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ *    
+ */
+
+package ch.carteggio.net.imap.parsing;
+
+import java.io.IOException;
+
+import ch.carteggio.net.FixedLengthInputStream;
+
+/**
+ * 
+ * Receives the content of untagged FETCH responses while they are parsed.
+ * 
+ * When an {@link IImapFetchCallback} is passed to the {@link ImapResponseParser}
+ * the attributes of a FETCH response are not stored in an {@link ImapList}, 
+ * instead they are passed to the callback in the order they appear on the wire.
+ * The {@link ImapResponse} returned by the parser then only contains the message
+ * number and the FETCH keyword.
+ * 
+ * Like for {@link IImapResponseCallback}, IOExceptions are passed through, while
+ * any other exception is thrown only after the complete response has been parsed.
+ * After an exception no more events are delivered for the same response.
+ * 
+ */
+public interface IImapFetchCallback {
+
+	/**
+	 * Called when a FETCH response for the given message sequence number starts.
+	 */
+	public void onFetchStart(long messageNumber) throws IOException, Exception;
+
+	public void onUid(long uid) throws IOException, Exception;
+
+	/**
+	 * Called once for every flag found in the FLAGS attribute.
+	 */
+	public void onFlag(String flag) throws IOException, Exception;
+
+	/**
+	 * Called with the unparsed value of the INTERNALDATE attribute.
+	 */
+	public void onInternalDate(String internalDate) throws IOException, Exception;
+
+	public void onSize(long size) throws IOException, Exception;
+
+	/**
+	 * Called for every node of the BODYSTRUCTURE attribute. The nodes are reported
+	 * in post-order: the children of a multipart node are reported before the node
+	 * itself, see {@link BodyStructureNode#mChildCount}.
+	 */
+	public void onBodyStructureNode(BodyStructureNode node) throws IOException, Exception;
+
+	/**
+	 * Called with the content of a BODY[section] attribute. The stream must be 
+	 * consumed before returning, what is not read is skipped by the parser.
+	 * 
+	 * @param section the text between the square brackets, for instance "" or "HEADER"
+	 * @param literal the content of the section
+	 */
+	public void onLiteral(String section, FixedLengthInputStream literal) throws IOException, Exception;
+
+	/**
+	 * Called when all the attributes of the FETCH response have been reported.
+	 */
+	public void onFetchEnd() throws IOException, Exception;
+
+}
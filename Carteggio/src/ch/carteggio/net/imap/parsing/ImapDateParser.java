@@ -0,0 +1,294 @@
+/*   
+ * Copyright (c) 2014, Lorenzo Keller
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ *    
+ */
+
+package ch.carteggio.net.imap.parsing;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+/**
+ * Parses the dates found in IMAP responses.
+ *
+ * <p>
+ * The parser accepts the RFC 3501 date-time format ({@code 17-Jul-1996 02:44:25 -0700})
+ * and the RFC 2822 layouts that some servers send instead
+ * ({@code 17 Jul 1996 02:44:25 -0700}, {@code Wed, 17 Jul 1996 02:44:25 -0700}), also
+ * without the time zone, in which case the local time zone is used. A trailing RFC 2822
+ * comment such as {@code (UTC)} is ignored. All the layouts are recognized in a single
+ * pass over the string.
+ * </p>
+ *
+ * <p>
+ * Unlike {@link java.text.SimpleDateFormat} the parser keeps no state, so it can be used
+ * by several threads without locking, and it reports malformed input by returning null
+ * instead of throwing an exception.
+ * </p>
+ */
+public final class ImapDateParser {
+
+    private static final String[] MONTHS = {
+        "jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"
+    };
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+    private ImapDateParser() {
+    }
+
+    /**
+     * Parses a date.
+     *
+     * @return the date or null if the value doesn't match any of the accepted layouts.
+     */
+    public static Date parse(String value) {
+        int length = value.length();
+        int[] pos = new int[] { skipSpaces(value, 0) };
+
+        // optional day of the week, e.g. "Wed,"
+        if (pos[0] < length && isLetter(value.charAt(pos[0]))) {
+            while (pos[0] < length && isLetter(value.charAt(pos[0]))) pos[0]++;
+            if (pos[0] >= length || value.charAt(pos[0]) != ',') {
+                return null;
+            }
+            pos[0] = skipSpaces(value, pos[0] + 1);
+        }
+
+        int day = readNumber(value, pos, 2);
+        if (day < 0 || !skipDateSeparator(value, pos)) {
+            return null;
+        }
+
+        int month = readMonth(value, pos);
+        if (month < 0 || !skipDateSeparator(value, pos)) {
+            return null;
+        }
+
+        int yearStart = pos[0];
+        int year = readNumber(value, pos, 4);
+        if (year < 0) {
+            return null;
+        } else if (pos[0] - yearStart == 2) {
+            // two digits year, see RFC 2822 section 4.3
+            year += year < 50 ? 2000 : 1900;
+        }
+
+        pos[0] = skipSpaces(value, pos[0]);
+
+        int hours = readNumber(value, pos, 2);
+        if (hours < 0 || !skip(value, pos, ':')) {
+            return null;
+        }
+        int minutes = readNumber(value, pos, 2);
+        if (minutes < 0) {
+            return null;
+        }
+        int seconds = 0;
+        if (skip(value, pos, ':')) {
+            seconds = readNumber(value, pos, 2);
+            if (seconds < 0) {
+                return null;
+            }
+        }
+
+        pos[0] = skipSpaces(value, pos[0]);
+
+        long localMillis = daysFromCivil(year, month) * MILLIS_PER_DAY
+                + (day - 1) * MILLIS_PER_DAY
+                + ((hours * 60L + minutes) * 60L + seconds) * 1000L;
+
+        if (skipComments(value, pos[0]) >= length) {
+            // no time zone, the date is in local time
+            GregorianCalendar calendar = new GregorianCalendar();
+            calendar.clear();
+            calendar.set(year, month, day, hours, minutes, seconds);
+            return calendar.getTime();
+        }
+
+        int offset = readZoneOffset(value, pos);
+        if (offset == Integer.MIN_VALUE || skipComments(value, pos[0]) != length) {
+            return null;
+        }
+
+        return new Date(localMillis - offset * MILLIS_PER_MINUTE);
+    }
+
+    /**
+     * Returns the number of days between 1970-01-01 and the first day of the given month,
+     * months are counted from 0 like in {@link java.util.Calendar}.
+     */
+    private static long daysFromCivil(int year, int month) {
+        // months are counted from March so that the leap day is at the end of the year
+        int y = month < 2 ? year - 1 : year;
+        int m = month < 2 ? month + 10 : month - 2;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * m + 2) / 5;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Reads a time zone, either numeric ({@code +0200}) or one of the names allowed by
+     * RFC 2822.
+     *
+     * @return the offset from UTC in minutes or {@link Integer#MIN_VALUE} if the zone is
+     *          not recognized.
+     */
+    private static int readZoneOffset(String value, int[] pos) {
+        char sign = value.charAt(pos[0]);
+
+        if (sign == '+' || sign == '-') {
+            pos[0]++;
+            int start = pos[0];
+            int zone = readNumber(value, pos, 4);
+            if (zone < 0 || pos[0] - start != 4) {
+                return Integer.MIN_VALUE;
+            }
+            int offset = (zone / 100) * 60 + zone % 100;
+            return sign == '-' ? -offset : offset;
+        }
+
+        int start = pos[0];
+        while (pos[0] < value.length() && isLetter(value.charAt(pos[0]))) pos[0]++;
+        String name = value.substring(start, pos[0]);
+
+        if (name.equalsIgnoreCase("GMT") || name.equalsIgnoreCase("UT")
+                || name.equalsIgnoreCase("UTC") || name.equalsIgnoreCase("Z")) {
+            if (pos[0] < value.length()
+                    && (value.charAt(pos[0]) == '+' || value.charAt(pos[0]) == '-')) {
+                // GMT+02:00
+                sign = value.charAt(pos[0]++);
+                int hours = readNumber(value, pos, 2);
+                int minutes = skip(value, pos, ':') ? readNumber(value, pos, 2) : 0;
+                if (hours < 0 || minutes < 0) {
+                    return Integer.MIN_VALUE;
+                }
+                int offset = hours * 60 + minutes;
+                return sign == '-' ? -offset : offset;
+            }
+            return 0;
+        } else if (name.equalsIgnoreCase("EST")) {
+            return -5 * 60;
+        } else if (name.equalsIgnoreCase("EDT")) {
+            return -4 * 60;
+        } else if (name.equalsIgnoreCase("CST")) {
+            return -6 * 60;
+        } else if (name.equalsIgnoreCase("CDT")) {
+            return -5 * 60;
+        } else if (name.equalsIgnoreCase("MST")) {
+            return -7 * 60;
+        } else if (name.equalsIgnoreCase("MDT")) {
+            return -6 * 60;
+        } else if (name.equalsIgnoreCase("PST")) {
+            return -8 * 60;
+        } else if (name.equalsIgnoreCase("PDT")) {
+            return -7 * 60;
+        }
+
+        return Integer.MIN_VALUE;
+    }
+
+    private static int readMonth(String value, int[] pos) {
+        int start = pos[0];
+        while (pos[0] < value.length() && isLetter(value.charAt(pos[0]))) pos[0]++;
+
+        // also accept full month names
+        if (pos[0] - start < 3) {
+            return -1;
+        }
+        for (int i = 0; i < MONTHS.length; i++) {
+            if (value.regionMatches(true, start, MONTHS[i], 0, 3)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a number of at most {@code maxDigits} digits.
+     *
+     * @return the number or -1 if there are no digits at the current position.
+     */
+    private static int readNumber(String value, int[] pos, int maxDigits) {
+        int result = 0;
+        int start = pos[0];
+        while (pos[0] < value.length() && pos[0] - start < maxDigits) {
+            char ch = value.charAt(pos[0]);
+            if (ch < '0' || ch > '9') {
+                break;
+            }
+            result = result * 10 + (ch - '0');
+            pos[0]++;
+        }
+        return pos[0] == start ? -1 : result;
+    }
+
+    private static boolean skipDateSeparator(String value, int[] pos) {
+        if (skip(value, pos, '-')) {
+            return true;
+        }
+        int start = pos[0];
+        pos[0] = skipSpaces(value, pos[0]);
+        return pos[0] > start;
+    }
+
+    private static boolean skip(String value, int[] pos, char ch) {
+        if (pos[0] < value.length() && value.charAt(pos[0]) == ch) {
+            pos[0]++;
+            return true;
+        }
+        return false;
+    }
+
+    private static int skipSpaces(String value, int pos) {
+        while (pos < value.length() && value.charAt(pos) == ' ') pos++;
+        return pos;
+    }
+
+    /**
+     * Skips spaces and comments, that is the CFWS of RFC 2822 which can follow the
+     * time zone, for instance {@code +0000 (UTC)}. A comment that isn't closed runs
+     * to the end of the value.
+     * 
+     * @return the position after the comments.
+     */
+    private static int skipComments(String value, int pos) {
+        pos = skipSpaces(value, pos);
+        
+        while (pos < value.length() && value.charAt(pos) == '(') {
+            int depth = 0;
+            do {
+                char ch = value.charAt(pos++);
+                if (ch == '\\') {
+                    pos++;
+                } else if (ch == '(') {
+                    depth++;
+                } else if (ch == ')') {
+                    depth--;
+                }
+            } while (depth > 0 && pos < value.length());
+            
+            pos = skipSpaces(value, Math.min(pos, value.length()));
+        }
+        
+        return pos;
+    }
+
+    private static boolean isLetter(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+    }
+
+}
@@ -0,0 +1,186 @@
+/*   
+ * Copyright (c) 2014, Lorenzo Keller
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ *    
+ */
+
+package ch.carteggio.net.imap.parsing;
+
+import java.nio.charset.Charset;
+
+/**
+ * Canonical instances of the keywords that appear in IMAP responses.
+ *
+ * <p>
+ * {@link ImapResponseParser} resolves the atoms it reads against this table, when an
+ * atom is one of the keywords the parser returns the constant defined here instead of
+ * creating a new string. Code that dispatches on the responses can therefore compare
+ * the tokens with these constants by identity, see
+ * {@link ImapResponseParser#equalsIgnoreCase(Object, Object)}.
+ * </p>
+ *
+ * <p>
+ * The lookup is case sensitive: keywords sent with a different case are returned as
+ * normal strings, this way atoms that aren't keywords (for instance a mailbox called
+ * "Flags") are never rewritten.
+ * </p>
+ */
+public final class ImapKeywords {
+
+    public static final String OK = "OK";
+    public static final String NO = "NO";
+    public static final String BAD = "BAD";
+    public static final String PREAUTH = "PREAUTH";
+    public static final String BYE = "BYE";
+
+    public static final String CAPABILITY = "CAPABILITY";
+    public static final String EXISTS = "EXISTS";
+    public static final String EXPUNGE = "EXPUNGE";
+    public static final String RECENT = "RECENT";
+    public static final String FETCH = "FETCH";
+    public static final String SEARCH = "SEARCH";
+    public static final String LIST = "LIST";
+    public static final String LSUB = "LSUB";
+    public static final String STATUS = "STATUS";
+    public static final String MESSAGES = "MESSAGES";
+    public static final String NAMESPACE = "NAMESPACE";
+    public static final String NIL = "NIL";
+
+    public static final String UID = "UID";
+    public static final String FLAGS = "FLAGS";
+    public static final String INTERNALDATE = "INTERNALDATE";
+    public static final String RFC822_SIZE = "RFC822.SIZE";
+    public static final String BODY = "BODY";
+    public static final String BODYSTRUCTURE = "BODYSTRUCTURE";
+
+    public static final String ALERT = "ALERT";
+    public static final String UIDNEXT = "UIDNEXT";
+    public static final String UIDVALIDITY = "UIDVALIDITY";
+    public static final String UNSEEN = "UNSEEN";
+    public static final String PERMANENTFLAGS = "PERMANENTFLAGS";
+    public static final String READ_ONLY = "READ-ONLY";
+    public static final String READ_WRITE = "READ-WRITE";
+    public static final String TRYCREATE = "TRYCREATE";
+    public static final String ALREADYEXISTS = "ALREADYEXISTS";
+    public static final String HIGHESTMODSEQ = "HIGHESTMODSEQ";
+    public static final String NOMODSEQ = "NOMODSEQ";
+    public static final String MODSEQ = "MODSEQ";
+    public static final String VANISHED = "VANISHED";
+    public static final String EARLIER = "EARLIER";
+    public static final String ENABLED = "ENABLED";
+
+    public static final String FLAG_SEEN = "\\Seen";
+    public static final String FLAG_ANSWERED = "\\Answered";
+    public static final String FLAG_FLAGGED = "\\Flagged";
+    public static final String FLAG_DELETED = "\\Deleted";
+    public static final String FLAG_DRAFT = "\\Draft";
+    public static final String FLAG_RECENT = "\\Recent";
+    public static final String FLAG_FORWARDED = "$Forwarded";
+    public static final String FLAG_NOSELECT = "\\Noselect";
+
+    private static final String[] KEYWORDS = {
+        OK, NO, BAD, PREAUTH, BYE, CAPABILITY, EXISTS, EXPUNGE, RECENT, FETCH, SEARCH,
+        LIST, LSUB, STATUS, MESSAGES, NAMESPACE, NIL, UID, FLAGS, INTERNALDATE, RFC822_SIZE, BODY,
+        BODYSTRUCTURE, ALERT, UIDNEXT, UIDVALIDITY, UNSEEN, PERMANENTFLAGS, READ_ONLY,
+        READ_WRITE, TRYCREATE, ALREADYEXISTS, HIGHESTMODSEQ, NOMODSEQ, MODSEQ, VANISHED, EARLIER, ENABLED,
+        FLAG_SEEN, FLAG_ANSWERED, FLAG_FLAGGED, FLAG_DELETED,
+        FLAG_DRAFT, FLAG_RECENT, FLAG_FORWARDED, FLAG_NOSELECT,
+    };
+
+    /**
+     * The length of the longest keyword, longer atoms are never looked up.
+     */
+    static final int MAX_LENGTH;
+
+    /*
+     * Open table indexed by the hash of the keyword bytes. The size is chosen when the
+     * class is loaded so that no two keywords share a slot, a lookup therefore needs a
+     * single comparison.
+     */
+    private static final String[] TABLE;
+    private static final byte[][] TABLE_BYTES;
+    private static final int TABLE_MASK;
+
+    static {
+        Charset ascii = Charset.forName("US-ASCII");
+
+        int maxLength = 0;
+        byte[][] keywordBytes = new byte[KEYWORDS.length][];
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            keywordBytes[i] = KEYWORDS[i].getBytes(ascii);
+            maxLength = Math.max(maxLength, keywordBytes[i].length);
+        }
+        MAX_LENGTH = maxLength;
+
+        int size = Integer.highestOneBit(KEYWORDS.length) << 1;
+        String[] table;
+        byte[][] tableBytes;
+        search:
+        while (true) {
+            if (size > 1 << 16) {
+                throw new IllegalStateException("No collision free keyword table");
+            }
+            table = new String[size];
+            tableBytes = new byte[size][];
+            for (int i = 0; i < KEYWORDS.length; i++) {
+                byte[] bytes = keywordBytes[i];
+                int slot = hash(bytes, 0, bytes.length) & (size - 1);
+                if (table[slot] != null) {
+                    size <<= 1;
+                    continue search;
+                }
+                table[slot] = KEYWORDS[i];
+                tableBytes[slot] = bytes;
+            }
+            break;
+        }
+        TABLE = table;
+        TABLE_BYTES = tableBytes;
+        TABLE_MASK = size - 1;
+    }
+
+    private ImapKeywords() {
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = length;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            h = h * 31 + bytes[i];
+        }
+        return h ^ (h >>> 7) ^ (h >>> 13);
+    }
+
+    /**
+     * Returns the canonical keyword made of the given bytes.
+     *
+     * @return the keyword constant or null if the bytes aren't a keyword.
+     */
+    static String lookup(byte[] bytes, int offset, int length) {
+        if (length > MAX_LENGTH) {
+            return null;
+        }
+
+        int slot = hash(bytes, offset, length) & TABLE_MASK;
+        byte[] keyword = TABLE_BYTES[slot];
+
+        if (keyword == null || keyword.length != length) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            if (keyword[i] != bytes[offset + i]) {
+                return null;
+            }
+        }
+        return TABLE[slot];
+    }
+
+}
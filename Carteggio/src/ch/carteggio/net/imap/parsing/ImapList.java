@@ -18,11 +18,8 @@
 
 package ch.carteggio.net.imap.parsing;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Locale;
 
 import ch.carteggio.net.MessagingException;
 
@@ -34,12 +31,6 @@ public class ImapList extends ArrayList<Object> {
 
 	private static final long serialVersionUID = -4067248341419617583L;
 
-    private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
-    private static final SimpleDateFormat badDateTimeFormat = new SimpleDateFormat("dd MMM yyyy HH:mm:ss Z", Locale.US);
-    private static final SimpleDateFormat badDateTimeFormat2 = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss Z", Locale.US);
-    private static final SimpleDateFormat badDateTimeFormat3 = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
-
-    
     public ImapList getList(int index) {
         return (ImapList)get(index);
     }
@@ -68,15 +59,21 @@ public class ImapList extends ArrayList<Object> {
         return getDate(getKeyedString(key));
     }
 
-    private Date getDate(String value) throws MessagingException {
-        try {
-            if (value == null) {
-                return null;
-            }
-            return parseDate(value);
-        } catch (ParseException pe) {
-            throw new MessagingException("Unable to parse IMAP datetime '" + value + "' ", pe);
+    /**
+     * Parses a date as found in IMAP responses, for instance in the
+     * INTERNALDATE attribute of a FETCH response.
+     *
+     * @see ImapDateParser
+     */
+    public static Date getDate(String value) throws MessagingException {
+        if (value == null) {
+            return null;
         }
+        Date date = ImapDateParser.parse(value);
+        if (date == null) {
+            throw new MessagingException("Unable to parse IMAP datetime '" + value + "' ");
+        }
+        return date;
     }
 
     public Object getKeyedValue(Object key) {
@@ -122,29 +119,4 @@ public class ImapList extends ArrayList<Object> {
 
         throw new IllegalArgumentException("getKeyIndex() only works for keys that are in the collection.");
     }
-
-    private Date parseDate(String value) throws ParseException {
-        //TODO: clean this up a bit
-        try {
-            synchronized (mDateTimeFormat) {
-                return mDateTimeFormat.parse(value);
-            }
-        } catch (Exception e) {
-            try {
-                synchronized (badDateTimeFormat) {
-                    return badDateTimeFormat.parse(value);
-                }
-            } catch (Exception e2) {
-                try {
-                    synchronized (badDateTimeFormat2) {
-                        return badDateTimeFormat2.parse(value);
-                    }
-                } catch (Exception e3) {
-                    synchronized (badDateTimeFormat3) {
-                        return badDateTimeFormat3.parse(value);
-                    }
-                }
-            }
-        }
-    }
-}
\ No newline at end of file
+}
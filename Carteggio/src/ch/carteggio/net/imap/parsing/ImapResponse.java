@@ -33,6 +33,20 @@ public class ImapResponse extends ImapList {
     public boolean mCommandContinuationRequested;
     public String mTag;
 
+    /**
+     * Returns the response code of a status response, for instance TRYCREATE for
+     * "NO [TRYCREATE] Mailbox doesn't exist", or null if there is none.
+     */
+    public String getResponseCode() {
+        if (size() > 1 && get(1) instanceof ImapList) {
+            ImapList code = getList(1);
+            if (!code.isEmpty() && code.get(0) instanceof String) {
+                return code.getString(0);
+            }
+        }
+        return null;
+    }
+
     public String getAlertText() {
         if (size() > 1 && ImapResponseParser.equalsIgnoreCase("[ALERT]", get(1))) {
             StringBuilder sb = new StringBuilder();
@@ -17,20 +17,76 @@
 
 package ch.carteggio.net.imap.parsing;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
-import android.text.TextUtils;
 import ch.carteggio.net.FixedLengthInputStream;
 import ch.carteggio.net.PeekableInputStream;
 
+/**
+ * Parses the responses sent by an IMAP server.
+ *
+ * <p>
+ * The parser does not pull the response through the input stream one byte at a time.
+ * Instead it finds the token boundaries with the bulk search operations of
+ * {@link PeekableInputStream}, which scan its buffer. Strings are created only once the
+ * complete token has been found.
+ * </p>
+ */
 public class ImapResponseParser {
 
+    private static final int INITIAL_TOKEN_BUFFER_SIZE = 256;
+
+    /*
+     * Bytes are mapped one to one to chars, this is what the parser always did when
+     * appending (char) bytes to a StringBuilder.
+     */
+    private static final Charset TOKEN_CHARSET = Charset.forName("ISO-8859-1");
+
+    /**
+     * Bytes that terminate an atom, see {@link #parseAtom()}.
+     */
+    private static final boolean[] ATOM_DELIMITERS = new boolean[256];
+
+    static {
+        for (int ch = 0x00; ch <= 0x1f; ch++) {
+            ATOM_DELIMITERS[ch] = true;
+        }
+        ATOM_DELIMITERS[0x7f] = true;
+        ATOM_DELIMITERS['('] = true;
+        ATOM_DELIMITERS[')'] = true;
+        ATOM_DELIMITERS['{'] = true;
+        ATOM_DELIMITERS[' '] = true;
+        ATOM_DELIMITERS['['] = true;
+        ATOM_DELIMITERS[']'] = true;
+        ATOM_DELIMITERS['"'] = true;
+    }
+
+    /**
+     * Bytes that end the fast path of {@link #parseQuoted()}.
+     */
+    private static final boolean[] QUOTED_SPECIALS = new boolean[256];
+
+    static {
+        QUOTED_SPECIALS['"'] = true;
+        QUOTED_SPECIALS['\\'] = true;
+    }
+
     private PeekableInputStream mIn;
     private ImapResponse mResponse;
     private Exception mException;
 
     private IImapResponseCallback mCallback;
-    
+    private IImapFetchCallback mFetchCallback;
+
+    /*
+     * Reused to copy the bytes of a token out of the stream buffer.
+     */
+    private byte[] mTokenBuffer = new byte[INITIAL_TOKEN_BUFFER_SIZE];
+
     public ImapResponseParser(PeekableInputStream in) {
         this.mIn = in;
     }
@@ -44,12 +100,23 @@ public class ImapResponseParser {
      * ImapResponse object that represents it.
      */
     public ImapResponse readResponse(IImapResponseCallback callback) throws IOException {
+        return readResponse(callback, null);
+    }
+
+    /**
+     * Reads the next response available on the stream. If the response is an untagged
+     * FETCH response and a {@link IImapFetchCallback} is given, its attributes are
+     * passed to the callback instead of being added to the returned ImapResponse.
+     */
+    public ImapResponse readResponse(IImapResponseCallback callback,
+            IImapFetchCallback fetchCallback) throws IOException {
         try {
             ImapResponse response = new ImapResponse();
             mResponse = response;
             mCallback = callback;
+            mFetchCallback = fetchCallback;
 
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '*') {
                 parseUntaggedResponse();
                 readTokens(response);
@@ -68,6 +135,7 @@ public class ImapResponseParser {
             return response;
         } finally {
             mCallback = null;
+            mFetchCallback = null;
             mResponse = null;
             mException = null;
         }
@@ -86,6 +154,11 @@ public class ImapResponseParser {
             while ((token = readToken(response)) != null) {
                 if (!(token instanceof ImapList)) {
                     response.add(token);
+
+                    if (mFetchCallback != null && response.mTag == null &&
+                            response.size() == 2 && equalsIgnoreCase(token, ImapKeywords.FETCH)) {
+                        parseFetchAttributes(response);
+                    }
                 }
             }
         }
@@ -119,7 +192,7 @@ public class ImapResponseParser {
     private void parseResponseText(ImapResponse parent) throws IOException {
         skipIfSpace();
 
-        int next = mIn.peek();
+        int next = peek();
         if (next == '[') {
             parseSequence(parent);
             skipIfSpace();
@@ -128,14 +201,14 @@ public class ImapResponseParser {
         String rest = readStringUntil('\r');
         expect('\n');
 
-        if (!TextUtils.isEmpty(rest)) {
+        if (rest.length() > 0) {
             // The rest is free-form text.
             parent.add(rest);
         }
     }
 
     private void skipIfSpace() throws IOException {
-        if (mIn.peek() == ' ') {
+        if (peek() == ' ') {
             expect(' ');
         }
     }
@@ -160,7 +233,7 @@ public class ImapResponseParser {
 
     private Object parseToken(ImapList parent) throws IOException {
         while (true) {
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '(') {
                 return parseList(parent);
             } else if (ch == '[') {
@@ -192,6 +265,357 @@ public class ImapResponseParser {
         }
     }
 
+    /**
+     * Parses the attribute list of a FETCH response and reports the attributes to
+     * {@link #mFetchCallback} without building an {@link ImapList}.
+     */
+    private void parseFetchAttributes(ImapResponse response) throws IOException {
+        skipIfSpace();
+        expect('(');
+
+        long number = parseNumber(response.getString(0));
+
+        try {
+            mFetchCallback.onFetchStart(number);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            deferFetchException(e);
+        }
+
+        while (true) {
+            int ch = peek();
+            if (ch == ' ') {
+                expect(' ');
+                continue;
+            } else if (ch == ')') {
+                expect(')');
+                break;
+            }
+
+            String attribute = parseAtom();
+            skipIfSpace();
+
+            // only the exceptions of the callback are deferred, malformed
+            // input is reported as IOException
+            if (equalsIgnoreCase(attribute, ImapKeywords.UID)) {
+                long uid = parseNumber(parseAtom());
+                try {
+                    if (mFetchCallback != null) mFetchCallback.onUid(uid);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    deferFetchException(e);
+                }
+            } else if (equalsIgnoreCase(attribute, ImapKeywords.FLAGS)) {
+                parseFetchFlags();
+            } else if (equalsIgnoreCase(attribute, ImapKeywords.INTERNALDATE)) {
+                String internalDate = readNString();
+                try {
+                    if (mFetchCallback != null) mFetchCallback.onInternalDate(internalDate);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    deferFetchException(e);
+                }
+            } else if (equalsIgnoreCase(attribute, ImapKeywords.RFC822_SIZE)) {
+                long size = parseNumber(parseAtom());
+                try {
+                    if (mFetchCallback != null) mFetchCallback.onSize(size);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    deferFetchException(e);
+                }
+            } else if (equalsIgnoreCase(attribute, ImapKeywords.BODYSTRUCTURE)) {
+                parseBodyStructure("TEXT");
+            } else if (equalsIgnoreCase(attribute, ImapKeywords.BODY)) {
+                if (peek() == '[') {
+                    expect('[');
+                    String section = readStringUntil(']');
+                    if (peek() == '<') {
+                        // origin octet, e.g. BODY[]<0>
+                        parseAtom();
+                    }
+                    skipIfSpace();
+                    parseFetchBody(section);
+                } else {
+                    // non extensible form of BODYSTRUCTURE
+                    parseBodyStructure("TEXT");
+                }
+            } else {
+                skipValue();
+            }
+        }
+
+        try {
+            if (mFetchCallback != null) mFetchCallback.onFetchEnd();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            deferFetchException(e);
+        }
+    }
+
+    /**
+     * Remembers an exception thrown by the fetch callback and stops reporting
+     * events for the rest of the response.
+     */
+    private void deferFetchException(Exception e) {
+        if (mException == null) {
+            mException = e;
+        }
+        mFetchCallback = null;
+    }
+
+    private void parseFetchFlags() throws IOException {
+        expect('(');
+        while (true) {
+            int ch = peek();
+            if (ch == ' ') {
+                expect(' ');
+            } else if (ch == ')') {
+                expect(')');
+                return;
+            } else {
+                String flag = parseAtom();
+                try {
+                    if (mFetchCallback != null) mFetchCallback.onFlag(flag);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    deferFetchException(e);
+                }
+            }
+        }
+    }
+
+    private void parseFetchBody(String section) throws IOException {
+        int ch = peek();
+        if (ch == '{') {
+            int size = readLiteralSize();
+
+            FixedLengthInputStream fixed = new FixedLengthInputStream(mIn, size);
+            try {
+                if (mFetchCallback != null) mFetchCallback.onLiteral(section, fixed);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                deferFetchException(e);
+            } finally {
+                // skip what the callback didn't read
+                fixed.skipRemaining();
+            }
+        } else if (ch == '"') {
+            byte[] data = parseQuoted().getBytes(TOKEN_CHARSET.name());
+            try {
+                if (mFetchCallback != null) {
+                    mFetchCallback.onLiteral(section, new FixedLengthInputStream(
+                            new ByteArrayInputStream(data), data.length));
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                deferFetchException(e);
+            }
+        } else {
+            // NIL
+            parseAtom();
+        }
+    }
+
+    /**
+     * Parses a node of a BODYSTRUCTURE attribute and its children, reporting them to
+     * the fetch callback in post-order.
+     */
+    private void parseBodyStructure(String id) throws IOException {
+        skipIfSpace();
+        expect('(');
+
+        BodyStructureNode node;
+
+        if (peek() == '(') {
+            // This is a multipart/*
+            int children = 0;
+            while (peek() == '(') {
+                children++;
+                if (id.equalsIgnoreCase("TEXT")) {
+                    parseBodyStructure(Integer.toString(children));
+                } else {
+                    parseBodyStructure(id + "." + children);
+                }
+                skipIfSpace();
+            }
+
+            node = new BodyStructureNode(id, true);
+            node.mChildCount = children;
+            if (peek() != ')') {
+                node.mSubType = readNString();
+            }
+        } else {
+            // 0 body type, 1 body subtype, 2 body parameter parenthesized list,
+            // 3 body id, 4 body description, 5 body encoding, 6 body size,
+            // followed by type specific fields and by the extensions
+            node = new BodyStructureNode(id, false);
+            node.mType = readNString();
+            node.mSubType = readNString();
+            node.mParameters = readNStringList();
+            skipValue();
+            skipValue();
+            node.mEncoding = readNString();
+            node.mSize = (int) parseNumber(readNString());
+
+            int dispositionIndex;
+            if ("text".equalsIgnoreCase(node.mType)) {
+                // 7 text lines, 8 body MD5, 9 body disposition
+                dispositionIndex = 9;
+            } else if ("message".equalsIgnoreCase(node.mType) && "rfc822".equalsIgnoreCase(node.mSubType)) {
+                // 7 envelope, 8 body structure, 9 text lines, 10 body MD5, 11 body disposition
+                dispositionIndex = 11;
+            } else {
+                // 7 body MD5, 8 body disposition
+                dispositionIndex = 8;
+            }
+
+            for (int index = 7; index < dispositionIndex; index++) {
+                skipIfSpace();
+                if (peek() == ')') {
+                    break;
+                }
+                skipValue();
+            }
+
+            skipIfSpace();
+            if (peek() == '(') {
+                expect('(');
+                node.mDisposition = readNString();
+                node.mDispositionParameters = readNStringList();
+                skipRemainingValues();
+            } else if (peek() != ')') {
+                skipValue();
+            }
+        }
+
+        skipRemainingValues();
+
+        try {
+            if (mFetchCallback != null) mFetchCallback.onBodyStructureNode(node);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            deferFetchException(e);
+        }
+    }
+
+    /**
+     * Reads a parenthesized list of strings, returns null for NIL.
+     */
+    private List<String> readNStringList() throws IOException {
+        skipIfSpace();
+        if (peek() != '(') {
+            // NIL
+            parseAtom();
+            return null;
+        }
+
+        expect('(');
+        List<String> values = new ArrayList<String>();
+        while (true) {
+            skipIfSpace();
+            if (peek() == ')') {
+                expect(')');
+                return values;
+            }
+            values.add(readNString());
+        }
+    }
+
+    /**
+     * Reads a single string that can be an atom, a quoted string or a literal.
+     */
+    private String readNString() throws IOException {
+        skipIfSpace();
+        int ch = peek();
+        if (ch == '"') {
+            return parseQuoted();
+        } else if (ch == '{') {
+            return readLiteralString();
+        } else {
+            return parseAtom();
+        }
+    }
+
+    /**
+     * Skips a value of any type, including nested lists.
+     */
+    private void skipValue() throws IOException {
+        skipIfSpace();
+        int ch = peek();
+        if (ch == '(') {
+            expect('(');
+            skipRemainingValues();
+        } else if (ch == '[') {
+            readStringUntil(']');
+        } else if (ch == '"') {
+            parseQuoted();
+        } else if (ch == '{') {
+            skipLiteral();
+        } else {
+            parseAtom();
+        }
+    }
+
+    /**
+     * Skips the values up to and including the ')' that closes the current list.
+     */
+    private void skipRemainingValues() throws IOException {
+        while (true) {
+            skipIfSpace();
+            if (peek() == ')') {
+                expect(')');
+                return;
+            }
+            skipValue();
+        }
+    }
+
+    /**
+     * Reads a literal as a string without passing it to {@link #mCallback}.
+     */
+    private String readLiteralString() throws IOException {
+        int size = readLiteralSize();
+        byte[] data = new byte[size];
+        readFully(data, size);
+        return new String(data, "US-ASCII");
+    }
+
+    private void skipLiteral() throws IOException {
+        new FixedLengthInputStream(mIn, readLiteralSize()).skipRemaining();
+    }
+
+    /**
+     * Reads the "{size}" CRLF that precedes the literal data.
+     */
+    private int readLiteralSize() throws IOException {
+        expect('{');
+        int size = (int) parseNumber(readStringUntil('}'));
+        expect('\r');
+        expect('\n');
+        return size;
+    }
+
+    /**
+     * Parses a number of the response, a malformed one is reported as IOException
+     * like any other syntax error.
+     */
+    private static long parseNumber(String value) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("parseNumber(): not a number (" + value + ")");
+        }
+    }
+
     private boolean parseCommandContinuationRequest() throws IOException {
         expect('+');
         return true;
@@ -250,31 +674,25 @@ public class ImapResponseParser {
     }
 
     private String parseAtom() throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while (true) {
-            ch = mIn.peek();
-            if (ch == -1) {
-                throw new IOException("parseAtom(): end of stream reached");
-            } else if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                       ch == '[' || ch == ']' ||
-                       // docs claim that flags are \ atom but atom isn't supposed to
-                       // contain
-                       // * and some flags contain *
-                       // ch == '%' || ch == '*' ||
-//                    ch == '%' ||
-                       // TODO probably should not allow \ and should recognize
-                       // it as a flag instead
-                       // ch == '"' || ch == '\' ||
-                       ch == '"' || (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f) {
-                if (sb.length() == 0) {
-                    throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
-                }
-                return sb.toString();
-            } else {
-                sb.append((char)mIn.read());
-            }
+        // docs claim that flags are \ atom but atom isn't supposed to
+        // contain * and some flags contain *, so '%' and '*' are not
+        // delimiters.
+        // TODO probably should not allow \ and should recognize
+        // it as a flag instead
+        int length = mIn.indexOfAny(ATOM_DELIMITERS);
+        if (length == -1) {
+            throw new IOException("parseAtom(): end of stream reached");
+        } else if (length == 0) {
+            int ch = mIn.peek();
+            throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
+        }
+
+        readToken(length);
+        String keyword = ImapKeywords.lookup(mTokenBuffer, 0, length);
+        if (keyword != null) {
+            return keyword;
         }
+        return new String(mTokenBuffer, 0, length, TOKEN_CHARSET);
     }
 
     /**
@@ -282,10 +700,7 @@ public class ImapResponseParser {
      * notify the callback with an InputStream.
      */
     private Object parseLiteral() throws IOException {
-        expect('{');
-        int size = Integer.parseInt(readStringUntil('}'));
-        expect('\r');
-        expect('\n');
+        int size = readLiteralSize();
 
         if (size == 0) {
             return "";
@@ -310,9 +725,7 @@ public class ImapResponseParser {
             int available = fixed.available();
             if ((available > 0) && (available != size)) {
                 // If so, skip the rest
-                while (fixed.available() > 0) {
-                    fixed.skip(fixed.available());
-                }
+                fixed.skipRemaining();
             }
 
             if (result != null) {
@@ -321,6 +734,12 @@ public class ImapResponseParser {
         }
 
         byte[] data = new byte[size];
+        readFully(data, size);
+
+        return new String(data, "US-ASCII");
+    }
+
+    private void readFully(byte[] data, int size) throws IOException {
         int read = 0;
         while (read != size) {
             int count = mIn.read(data, read, size - read);
@@ -329,17 +748,33 @@ public class ImapResponseParser {
             }
             read += count;
         }
-
-        return new String(data, "US-ASCII");
     }
 
     private String parseQuoted() throws IOException {
         expect('"');
 
-        StringBuilder sb = new StringBuilder();
+        int length = mIn.indexOfAny(QUOTED_SPECIALS);
+        if (length == -1) {
+            throw new IOException("parseQuoted(): end of stream reached");
+        }
+
+        String prefix = consumeString(length, 0);
+        if (read() == '"') {
+            return prefix;
+        }
+        return parseEscapedQuoted(prefix);
+    }
+
+    /**
+     * Slow path of {@link #parseQuoted()} used for the rare quoted strings that contain
+     * escaped characters.
+     */
+    private String parseEscapedQuoted(String prefix) throws IOException {
+        StringBuilder sb = new StringBuilder(prefix);
         int ch;
-        boolean escape = false;
-        while ((ch = mIn.read()) != -1) {
+        // the backslash that ended the fast path has already been read
+        boolean escape = true;
+        while ((ch = read()) != -1) {
             if (!escape && (ch == '\\')) {
                 // Found the escape character
                 escape = true;
@@ -354,37 +789,81 @@ public class ImapResponseParser {
     }
 
     private String readStringUntil(char end) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = mIn.read()) != -1) {
-            if (ch == end) {
-                return sb.toString();
-            } else {
-                sb.append((char)ch);
-            }
+        int length = mIn.indexOf(end);
+        if (length == -1) {
+            throw new IOException("readStringUntil(): end of stream reached");
         }
-        throw new IOException("readStringUntil(): end of stream reached");
+        return consumeString(length, 1);
     }
 
     private int expect(char ch) throws IOException {
         int d;
-        if ((d = mIn.read()) != ch) {
+        if ((d = read()) != ch) {
             throw new IOException(String.format("Expected %04x (%c) but got %04x (%c)", (int)ch,
                                                 ch, d, (char)d));
         }
         return d;
     }
 
+    private int peek() throws IOException {
+        return mIn.peek();
+    }
+
+    private int read() throws IOException {
+        return mIn.read();
+    }
+
+    /**
+     * Creates a string from the next {@code length} bytes of the stream and consumes
+     * them together with the {@code skip} bytes that follow.
+     */
+    private String consumeString(int length, int skip) throws IOException {
+        readToken(length);
+        mIn.skip(skip);
+        return new String(mTokenBuffer, 0, length, TOKEN_CHARSET);
+    }
+
+    /**
+     * Copies the next {@code length} bytes of the stream to {@link #mTokenBuffer}. The
+     * bytes must have been found by one of the search operations of the stream, so
+     * they are already in its buffer.
+     */
+    private void readToken(int length) throws IOException {
+        if (mTokenBuffer.length < length) {
+            mTokenBuffer = new byte[Math.max(length, mTokenBuffer.length * 2)];
+        }
+        int read = 0;
+        while (read < length) {
+            int count = mIn.read(mTokenBuffer, read, length - read);
+            if (count == -1) {
+                throw new IOException("readToken(): end of stream reached");
+            }
+            read += count;
+        }
+    }
+
     public boolean isStatusResponse(String symbol) {
-        return symbol.equalsIgnoreCase("OK") ||
-               symbol.equalsIgnoreCase("NO") ||
-               symbol.equalsIgnoreCase("BAD") ||
-               symbol.equalsIgnoreCase("PREAUTH") ||
-               symbol.equalsIgnoreCase("BYE");
+        if (symbol == ImapKeywords.OK || symbol == ImapKeywords.NO ||
+                symbol == ImapKeywords.BAD || symbol == ImapKeywords.PREAUTH ||
+                symbol == ImapKeywords.BYE) {
+            return true;
+        }
+        return symbol.equalsIgnoreCase(ImapKeywords.OK) ||
+               symbol.equalsIgnoreCase(ImapKeywords.NO) ||
+               symbol.equalsIgnoreCase(ImapKeywords.BAD) ||
+               symbol.equalsIgnoreCase(ImapKeywords.PREAUTH) ||
+               symbol.equalsIgnoreCase(ImapKeywords.BYE);
     }
 
+    /**
+     * Compares two tokens ignoring the case of strings. Tokens that are keywords are
+     * usually the instances defined in {@link ImapKeywords}, comparing them with those
+     * constants succeeds without looking at the characters.
+     */
     public static boolean equalsIgnoreCase(Object o1, Object o2) {
-        if (o1 != null && o2 != null && o1 instanceof String && o2 instanceof String) {
+        if (o1 == o2) {
+            return true;
+        } else if (o1 != null && o2 != null && o1 instanceof String && o2 instanceof String) {
             String s1 = (String)o1;
             String s2 = (String)o2;
             return s1.equalsIgnoreCase(s2);
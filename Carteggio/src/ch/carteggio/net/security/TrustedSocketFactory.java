@@ -19,24 +19,48 @@ package ch.carteggio.net.security;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 
 /**
  * Filter and reorder list of cipher suites and TLS versions.
+ * 
+ * The SSL contexts are shared by all the connections to the same server so
+ * that TLS sessions can be resumed.
  */
 public class TrustedSocketFactory {
 	
 	private static final String LOG_TAG = "TrustedSocketFactory";
+
+    public static boolean DEBUG = false;
+
+    /** Number of sessions kept for every server. */
+    public static final int SESSION_CACHE_SIZE = 8;
+
+    /** Lifetime of the cached sessions, in seconds. */
+    public static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    private static final Map<String, SSLContext> mContexts = new HashMap<String, SSLContext>();
+
+    private static long mHandshakes;
+    private static long mResumedHandshakes;
+    private static long mHandshakeTime;
 	
     protected static final String ENABLED_CIPHERS[];
     protected static final String ENABLED_PROTOCOLS[];
@@ -135,21 +159,94 @@ public class TrustedSocketFactory {
         return result.toArray(new String[result.size()]);
     }
 
-    public static Socket createSocket(SSLContext sslContext) throws IOException {
-        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket();
-        hardenSocket(socket);
+    /**
+     * Returns the context used for the connections to a server, it is kept for
+     * the lifetime of the process so that its client session cache allows
+     * abbreviated handshakes when we reconnect.
+     */
+    public static synchronized SSLContext getContext(String host, int port,
+            ConnectionSecurity security) throws GeneralSecurityException {
+        String key = host.toLowerCase(Locale.US) + ":" + port + ":" + security;
 
-        return socket;
+        SSLContext sslContext = mContexts.get(key);
+
+        if (sslContext == null) {
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null,
+                    new TrustManager[] { TrustManagerFactory.get(host, port) },
+                    new SecureRandom());
+
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+            }
+
+            mContexts.put(key, sslContext);
+        }
+
+        return sslContext;
     }
 
-    public static Socket createSocket(SSLContext sslContext, Socket s, String host, int port,
-            boolean autoClose) throws IOException {
-        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(s, host, port, autoClose);
+    /**
+     * Starts TLS on a connected socket and completes the handshake, resuming
+     * the previous session with the server if it is still cached.
+     */
+    public static Socket createSocket(Socket s, String host, int port,
+            ConnectionSecurity security) throws IOException, GeneralSecurityException {
+        SSLContext sslContext = getContext(host, port, security);
+
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(s, host, port, true);
         hardenSocket(socket);
 
+        long start = System.currentTimeMillis();
+        long startTime = SystemClock.elapsedRealtime();
+
+        socket.startHandshake();
+
+        long handshakeTime = SystemClock.elapsedRealtime() - startTime;
+
+        // a resumed session was created by an earlier handshake
+        boolean resumed = socket.getSession().getCreationTime() < start;
+
+        synchronized (TrustedSocketFactory.class) {
+            mHandshakes++;
+            mHandshakeTime += handshakeTime;
+            if (resumed) {
+                mResumedHandshakes++;
+            }
+        }
+
+        if (DEBUG) {
+            Log.d(LOG_TAG, (resumed ? "Resumed" : "Full") + " handshake with " + host
+                    + " in " + handshakeTime + "ms, resumption ratio " + getResumptionRatio());
+        }
+
         return socket;
     }
 
+    public static synchronized long getHandshakeCount() {
+        return mHandshakes;
+    }
+
+    public static synchronized long getResumedHandshakeCount() {
+        return mResumedHandshakes;
+    }
+
+    /**
+     * Returns the share of the handshakes that resumed a cached session.
+     */
+    public static synchronized double getResumptionRatio() {
+        return mHandshakes == 0 ? 0 : (double) mResumedHandshakes / mHandshakes;
+    }
+
+    /**
+     * Returns the average time spent in handshakes, in milliseconds.
+     */
+    public static synchronized long getAverageHandshakeTime() {
+        return mHandshakes == 0 ? 0 : mHandshakeTime / mHandshakes;
+    }
+
     private static void hardenSocket(SSLSocket sock) {
         if (ENABLED_CIPHERS != null) {
             sock.setEnabledCipherSuites(ENABLED_CIPHERS);
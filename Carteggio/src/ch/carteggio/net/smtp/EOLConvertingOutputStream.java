@@ -31,16 +31,48 @@ public class EOLConvertingOutputStream extends FilterOutputStream {
 
     @Override
     public void write(int oneByte) throws IOException {
-        if (!ignoreNextIfLF) {
+        if (!ignoreNextIfLF || oneByte != '\n') {
             if ((oneByte == '\n') && (lastChar != '\r')) {
-                super.write('\r');
+                out.write('\r');
             }
-            super.write(oneByte);
+            out.write(oneByte);
             lastChar = oneByte;
         }
         ignoreNextIfLF = false;
     }
 
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+
+        int end = offset + length;
+
+        if (ignoreNextIfLF) {
+            ignoreNextIfLF = false;
+            if (buffer[offset] == '\n') {
+                offset++;
+            }
+        }
+
+        // write the runs of bytes that don't need a <CR> in bulk
+        int start = offset;
+        int previous = lastChar;
+        for (int i = offset; i < end; i++) {
+            int c = buffer[i];
+            if (c == '\n' && previous != '\r') {
+                out.write(buffer, start, i - start);
+                out.write('\r');
+                start = i;
+            }
+            previous = c;
+        }
+        out.write(buffer, start, end - start);
+
+        lastChar = previous & 0xff;
+    }
+
     @Override
     public void flush() throws IOException {
         if (lastChar == '\r') {
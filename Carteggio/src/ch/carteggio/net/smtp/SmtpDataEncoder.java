@@ -0,0 +1,165 @@
+/*   
+ * Copyright (c) 2014, Lorenzo Keller
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ *    
+ */
+package ch.carteggio.net.smtp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes the content of the DATA command in a single pass.
+ * 
+ * Line endings are converted to CRLF, lines longer than the limit are wrapped
+ * at the last space and lines starting with a dot get an additional one
+ * (RFC 5321, 4.5.2).
+ */
+public class SmtpDataEncoder extends FilterOutputStream {
+    private static final int STATE_NORMAL = 0;
+    private static final int STATE_CR = 1;
+    private static final int STATE_CRLF = 2;
+
+    private final byte[] mLine;
+    private int mLineLength;
+    private int mWritten;
+    private int mLastSpace;
+
+    private int mLastChar;
+    private boolean mIgnoreNextIfLF;
+
+    // the data starts right after the CRLF of the DATA command
+    private int mState = STATE_CRLF;
+
+    /**
+     * @param maxLineLength the longest line allowed, including the CRLF
+     */
+    public SmtpDataEncoder(OutputStream out, int maxLineLength) {
+        super(out);
+        mLine = new byte[maxLineLength - 2];
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        encode(oneByte & 0xff);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            encode(buffer[i] & 0xff);
+        }
+    }
+
+    private void encode(int c) throws IOException {
+        if (mIgnoreNextIfLF) {
+            mIgnoreNextIfLF = false;
+            if (c == '\n') {
+                return;
+            }
+        }
+
+        if (c == '\n' && mLastChar != '\r') {
+            endLine('\r');
+        }
+        mLastChar = c;
+
+        if (c == '\r' || c == '\n') {
+            endLine(c);
+        } else {
+            if (mLineLength == mLine.length) {
+                wrapLine();
+            }
+
+            // a space at the beginning of the line can't be used to wrap it
+            if (c == ' ') {
+                mLastSpace = mLineLength;
+            }
+
+            mLine[mLineLength++] = (byte) c;
+        }
+    }
+
+    /**
+     * Breaks a full line at the last space, which is dropped, or where it is
+     * if there is no space.
+     */
+    private void wrapLine() throws IOException {
+        if (mLastSpace > 0 && mLastSpace >= mWritten) {
+            writeLineContent(mWritten, mLastSpace);
+            writeLineEnd('\r');
+            writeLineEnd('\n');
+
+            mLineLength -= mLastSpace + 1;
+            System.arraycopy(mLine, mLastSpace + 1, mLine, 0, mLineLength);
+        } else {
+            writeLineContent(mWritten, mLineLength);
+            writeLineEnd('\r');
+            writeLineEnd('\n');
+
+            mLineLength = 0;
+        }
+        mWritten = 0;
+        mLastSpace = 0;
+    }
+
+    private void endLine(int c) throws IOException {
+        writeLineContent(mWritten, mLineLength);
+        writeLineEnd(c);
+
+        mLineLength = 0;
+        mWritten = 0;
+        mLastSpace = 0;
+    }
+
+    private void writeLineContent(int start, int end) throws IOException {
+        if (end > start) {
+            if (mState == STATE_CRLF && mLine[start] == '.') {
+                out.write('.');
+            }
+            out.write(mLine, start, end - start);
+            mState = STATE_NORMAL;
+        }
+    }
+
+    private void writeLineEnd(int c) throws IOException {
+        out.write(c);
+        if (c == '\r') {
+            mState = STATE_CR;
+        } else if (mState == STATE_CR) {
+            mState = STATE_CRLF;
+        } else {
+            mState = STATE_NORMAL;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mLastChar == '\r') {
+            endLine('\n');
+            mLastChar = '\n';
+
+            // We have to ignore the next character if it is <LF>. Otherwise it
+            // will be expanded to an additional <CR><LF> sequence although it
+            // belongs to the one just completed.
+            mIgnoreNextIfLF = true;
+        }
+
+        // send what we have of the current line, it will be wrapped later
+        // only if there is a space after this point
+        writeLineContent(mWritten, mLineLength);
+        mWritten = mLineLength;
+
+        out.flush();
+    }
+}
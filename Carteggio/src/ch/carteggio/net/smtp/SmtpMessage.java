@@ -31,31 +31,58 @@ public class SmtpMessage {
 	
 	public enum Encoding {		
 		ENCODING_7BIT,
-		ENCODING_8BIT		
+		ENCODING_8BIT,
+		ENCODING_BINARY
 	}
 
+	/**
+	 * Writes the content of a message, it can be called more than once.
+	 */
+	public interface Content {
+		
+		public void writeTo(OutputStream out) throws IOException;
+		
+		/**
+		 * Returns an upper bound of the size of the content once written with
+		 * CRLF line endings, or -1 if it isn't known without writing it.
+		 */
+		public long getMaximumSize();
+		
+	}
+	
 	private static final String LOG_TAG = "SmtpMessage";
 	
 	private Encoding mEncoding;
-	private byte[] mBody;
+	private Content mContent;
 	private String[] mDestinations;
 	private String mFrom;
+	private long mSize = -1;
 	
-	public SmtpMessage(String mFrom, String[] mDestinations, byte[] mBody, Encoding mEncoding) {
+	public SmtpMessage(String mFrom, String[] mDestinations, Content mContent, Encoding mEncoding) {
 		this.mFrom = mFrom;
 		this.mDestinations = mDestinations;
-		this.mBody = mBody;
+		this.mContent = mContent;
 		this.mEncoding = mEncoding;
 	}
 
+	/**
+	 * Returns the size of the message once its line endings are converted,
+	 * the content is written once to count it and the result is kept.
+	 */
 	public long calculateSize() {	    
+		
+		if (mSize >= 0) {
+			return mSize;
+		}
+		
         try {
 
             CountingOutputStream out = new CountingOutputStream();
             EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
             writeTo(eolOut);
             eolOut.flush();
-            return out.getCount();
+            mSize = out.getCount();
+            return mSize;
         } catch (IOException e) {
             Log.e(LOG_TAG, "Failed to calculate a message size", e);
         } catch (MessagingException e) {
@@ -64,6 +91,14 @@ public class SmtpMessage {
         return 0;
 	}
 
+	/**
+	 * Returns an upper bound of the size of the message, computed without
+	 * writing it, or -1 if it isn't known.
+	 */
+	public long getMaximumSize() {
+		return mContent.getMaximumSize();
+	}
+
 	public String getFrom() {
 		return mFrom;
 	}
@@ -78,7 +113,7 @@ public class SmtpMessage {
 
 	public void writeTo(OutputStream msgOut) throws MessagingException {
 		try {
-			msgOut.write(mBody);
+			mContent.writeTo(msgOut);
 		} catch (IOException e) {
 			throw new MessagingException("Error while writing", e);
 		}
@@ -17,31 +17,28 @@
 
 package ch.carteggio.net.smtp;
 
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
-import javax.net.ssl.TrustManager;
 
 import ch.carteggio.net.MessagingException;
 import ch.carteggio.net.PeekableInputStream;
+import ch.carteggio.net.SocketConnector;
 import ch.carteggio.net.security.AuthType;
 import ch.carteggio.net.security.Authentication;
 import ch.carteggio.net.security.AuthenticationFailedException;
 import ch.carteggio.net.security.CertificateValidationException;
 import ch.carteggio.net.security.ConnectionSecurity;
-import ch.carteggio.net.security.TrustManagerFactory;
 import ch.carteggio.net.security.TrustedSocketFactory;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 
 import java.util.*;
@@ -55,6 +52,24 @@ public class SmtpTransport {
     // RFC 1047
     protected static final int SOCKET_READ_TIMEOUT = 300000;
 
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /**
+     * Size of the BDAT chunks, the data is buffered up to this size.
+     */
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    /**
+     * Time after which an idle session is checked with NOOP before sending.
+     */
+    protected static final long SESSION_PROBE_IDLE_TIME = 15 * 1000;
+
+    /**
+     * Time after which an idle session is closed instead of being reused,
+     * servers usually drop clients that are idle for a few minutes.
+     */
+    protected static final long SESSION_IDLE_TIMEOUT = 2 * 60 * 1000;
+
 	public static boolean DEBUG = false;
 	public static boolean DEBUG_PROTOCOL_SMTP = false;
 	public static boolean DEBUG_SENSITIVE = false;
@@ -69,7 +84,12 @@ public class SmtpTransport {
     private PeekableInputStream mIn;
     private OutputStream mOut;
     private boolean m8bitEncodingAllowed;
+    private boolean mPipeliningSupported;
+    private boolean mChunkingSupported;
+    private boolean mBinaryMimeAllowed;
     private int mLargestAcceptableMessage;
+    private long mLastActivity;
+    private boolean mTransactionStarted;
 
     public SmtpTransport(String uri, String password) {
     	
@@ -145,38 +165,32 @@ public class SmtpTransport {
 		return m8bitEncodingAllowed;
 	}
 
+    /**
+     * Returns true if messages can contain binary parts (RFC 3030), these
+     * can only be sent with BDAT.
+     */
+    public boolean isBinaryMimeAllowed() {
+        return mBinaryMimeAllowed;
+    }
+
 	public void open() throws MessagingException {
         try {
-            InetAddress[] addresses = InetAddress.getAllByName(mHost);
-            for (int i = 0; i < addresses.length; i++) {
-                try {
-                    SocketAddress socketAddress = new InetSocketAddress(addresses[i], mPort);
-                    if (mConnectionSecurity == ConnectionSecurity.SSL_TLS_REQUIRED) {
-                        SSLContext sslContext = SSLContext.getInstance("TLS");
-                        sslContext.init(null,
-                                new TrustManager[] { TrustManagerFactory.get(
-                                        mHost, mPort) },
-                                new SecureRandom());
-                        mSocket = TrustedSocketFactory.createSocket(sslContext);
-                        mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
-                    } else {
-                        mSocket = new Socket();
-                        mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
-                    }
-                } catch (SocketException e) {
-                    if (i < (addresses.length - 1)) {
-                        // there are still other addresses for that host to try
-                        continue;
-                    }
-                    throw new MessagingException("Cannot connect to host", e);
-                }
-                break; // connection success
+            // race the IPv4 and IPv6 addresses of the host
+            try {
+                mSocket = SocketConnector.connect(mHost, mPort, SOCKET_CONNECT_TIMEOUT);
+            } catch (SocketException e) {
+                throw new MessagingException("Cannot connect to host", e);
             }
 
             // RFC 1047
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
 
-            mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(), 1024));
+            if (mConnectionSecurity == ConnectionSecurity.SSL_TLS_REQUIRED) {
+                mSocket = TrustedSocketFactory.createSocket(mSocket, mHost, mPort,
+                        mConnectionSecurity);
+            }
+
+            mIn = new PeekableInputStream(mSocket.getInputStream(), READ_BUFFER_SIZE);
             mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
 
             // Eat the banner
@@ -203,21 +217,13 @@ public class SmtpTransport {
 
             HashMap<String,String> extensions = sendHello(localHost);
 
-            m8bitEncodingAllowed = extensions.containsKey("8BITMIME");
-
-
             if (mConnectionSecurity == ConnectionSecurity.STARTTLS_REQUIRED) {
                 if (extensions.containsKey("STARTTLS")) {
                     executeSimpleCommand("STARTTLS");
 
-                    SSLContext sslContext = SSLContext.getInstance("TLS");
-                    sslContext.init(null,
-                            new TrustManager[] { TrustManagerFactory.get(mHost,
-                                    mPort) }, new SecureRandom());
-                    mSocket = TrustedSocketFactory.createSocket(sslContext, mSocket, mHost,
-                              mPort, true);
-                    mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(),
-                                                  1024));
+                    mSocket = TrustedSocketFactory.createSocket(mSocket, mHost, mPort,
+                            mConnectionSecurity);
+                    mIn = new PeekableInputStream(mSocket.getInputStream(), READ_BUFFER_SIZE);
                     mOut = new BufferedOutputStream(mSocket.getOutputStream(), 1024);
                     
                     /*
@@ -239,6 +245,11 @@ public class SmtpTransport {
                 }
             }
 
+            m8bitEncodingAllowed = extensions.containsKey("8BITMIME");
+            mPipeliningSupported = extensions.containsKey("PIPELINING");
+            mChunkingSupported = extensions.containsKey("CHUNKING");
+            mBinaryMimeAllowed = mChunkingSupported && extensions.containsKey("BINARYMIME");
+
             boolean authLoginSupported = false;
             boolean authPlainSupported = false;
             boolean authCramMD5Supported = false;
@@ -340,70 +351,267 @@ public class SmtpTransport {
         return extensions;
     }
 
+    /**
+     * Sends the envelope of a message waiting for the reply to every command,
+     * DATA is sent only if requested.
+     */
+    private void sendEnvelope(String mailFrom, String[] destinations, boolean data)
+            throws IOException, MessagingException {
+
+        executeSimpleCommand(mailFrom);
+
+        for (String address : destinations) {
+            try {
+                executeSimpleCommand("RCPT TO:<" + address + ">");
+            } catch (NegativeSmtpReplyException e) {
+                throw new RecipientRejectedException(
+                        Collections.singletonList(address), e);
+            }
+        }
+
+        if (data) {
+            executeSimpleCommand("DATA");
+        }
+    }
+
+    /**
+     * Sends the envelope of a message as a single batch of commands and then
+     * reads the replies (RFC 2920). DATA is sent only if requested.
+     * 
+     * If any command failed the transaction is aborted. When the server has
+     * already accepted DATA the only way to do this is to drop the connection.
+     */
+    private void sendEnvelopePipelined(String mailFrom, String[] destinations, boolean data)
+            throws IOException, MessagingException {
+
+        writeLine(mailFrom, false, false);
+        for (String address : destinations) {
+            writeLine("RCPT TO:<" + address + ">", false, false);
+        }
+        if (data) {
+            writeLine("DATA", false, false);
+        }
+        mOut.flush();
+
+        NegativeSmtpReplyException failure = null;
+        List<String> rejectedRecipients = new ArrayList<String>();
+        NegativeSmtpReplyException firstRejection = null;
+
+        try {
+            readReply();
+        } catch (NegativeSmtpReplyException e) {
+            failure = e;
+        }
+
+        for (String address : destinations) {
+            try {
+                readReply();
+            } catch (NegativeSmtpReplyException e) {
+                rejectedRecipients.add(address);
+                if (firstRejection == null) firstRejection = e;
+            }
+        }
+
+        boolean dataAccepted = data;
+
+        if (data) {
+            try {
+                readReply();
+            } catch (NegativeSmtpReplyException e) {
+                dataAccepted = false;
+                if (failure == null && firstRejection == null) failure = e;
+            }
+        }
+
+        if (failure == null && firstRejection != null) {
+            failure = new RecipientRejectedException(rejectedRecipients, firstRejection);
+        }
+
+        if (failure != null) {
+            if (dataAccepted) {
+                closeSocket();
+            }
+            throw failure;
+        }
+    }
+
+    public boolean isOpen() {
+        return mSocket != null && mSocket.isConnected() && !mSocket.isClosed();
+    }
+
+    /**
+     * Returns the time in milliseconds since the server last answered.
+     */
+    public long getIdleTime() {
+        return SystemClock.elapsedRealtime() - mLastActivity;
+    }
+
+    /**
+     * Makes sure that an authenticated session ready for a new mail transaction
+     * is available, reusing the current one if possible. Once it returns the
+     * extensions supported by the server are known.
+     */
+    public void prepareSession() throws MessagingException {
+
+        if (isOpen()) {
+
+            long idleTime = getIdleTime();
+
+            try {
+                if (idleTime > SESSION_IDLE_TIMEOUT) {
+                    // the server has most likely dropped the session already,
+                    // a QUIT could wait for the whole read timeout
+                    closeSocket();
+                } else if (mTransactionStarted) {
+                    // a failed transaction may have left some state behind
+                    executeSimpleCommand("RSET");
+                    mTransactionStarted = false;
+                } else if (idleTime > SESSION_PROBE_IDLE_TIME) {
+                    executeSimpleCommand("NOOP");
+                }
+            } catch (Exception e) {
+                if (DEBUG) {
+                    Log.d(LOG_TAG, "Session not usable anymore, reconnecting", e);
+                }
+                closeSocket();
+            }
+
+        }
+
+        if (!isOpen()) {
+            mTransactionStarted = false;
+            try {
+                open();
+            } catch (MessagingException e) {
+                // don't keep a session that isn't authenticated
+                closeSocket();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Sends a message, reusing the current session if there is one.
+     * 
+     * @throws MessagingException if sending failed, it is a permanent failure
+     *         if the server refused the message with a 5xx reply or if the
+     *         message may have been delivered anyway
+     */
     public void sendMessageTo(SmtpMessage message) throws MessagingException {
         
     	boolean possibleSend = false;
 
-        close();
-        open();
+        prepareSession();
 
-        // If the message has attachments and our server has told us about a limit on
-        // the size of messages, count the message's size before sending it
+        // If our server has told us about a limit on the size of messages, check
+        // the message fits. An upper bound is enough for text messages, the size of
+        // messages with attachments is counted before sending them.
         if (mLargestAcceptableMessage > 0 ) {
-            if (message.calculateSize() > mLargestAcceptableMessage) {
-                MessagingException me = new MessagingException("Message too large for server");
-                me.setPermanentFailure(possibleSend);
-                throw me;
+            long maximumSize = message.getMaximumSize();
+            if ((maximumSize < 0 || maximumSize > mLargestAcceptableMessage)
+                    && message.calculateSize() > mLargestAcceptableMessage) {
+                throw new MessagingException("Message too large for server", true);
             }
         }
 
         String from = message.getFrom();
         
         try {        	
-            executeSimpleCommand("MAIL FROM:<" + from + ">"
-                    + (message.getEncoding() == SmtpMessage.Encoding.ENCODING_8BIT ? " BODY=8BITMIME" : ""));
-            
-            for (String address : message.getDestinations()) {
-                executeSimpleCommand("RCPT TO:<" + address + ">");
+            mTransactionStarted = true;
+
+            String mailFrom = "MAIL FROM:<" + from + ">";
+
+            switch (message.getEncoding()) {
+            case ENCODING_8BIT:
+                mailFrom += " BODY=8BITMIME";
+                break;
+            case ENCODING_BINARY:
+                mailFrom += " BODY=BINARYMIME";
+                break;
+            default:
+                break;
+            }
+
+            // BDAT (RFC 3030) is also the only way to send binary messages
+            boolean chunking = mChunkingSupported;
+
+            if (mPipeliningSupported) {
+                sendEnvelopePipelined(mailFrom, message.getDestinations(), !chunking);
+            } else {
+                sendEnvelope(mailFrom, message.getDestinations(), !chunking);
             }
-            executeSimpleCommand("DATA");
 
-            EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
-                    new LineWrapOutputStream(new SmtpDataStuffing(mOut), 1000));
+            if (chunking) {
 
-            message.writeTo(msgOut);
+                // the size of every chunk is known in advance so the data
+                // doesn't need to be dot-stuffed or wrapped
+                ChunkingOutputStream chunkOut = new ChunkingOutputStream();
+                EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(chunkOut);
 
-            // We use BufferedOutputStream. So make sure to call flush() !
-            msgOut.flush();
+                message.writeTo(msgOut);
 
-            possibleSend = true; // After the "\r\n." is attempted, we may have sent the message
-            executeSimpleCommand("\r\n.");
+                msgOut.flush();
+
+                possibleSend = true;
+                chunkOut.finish();
+
+            } else {
+
+                SmtpDataEncoder msgOut = new SmtpDataEncoder(mOut, 1000);
+
+                message.writeTo(msgOut);
+
+                // We use BufferedOutputStream. So make sure to call flush() !
+                msgOut.flush();
+
+                possibleSend = true; // After the "\r\n." is attempted, we may have sent the message
+                executeSimpleCommand("\r\n.");
+
+            }
+            mTransactionStarted = false;
         } catch (Exception e) {
             MessagingException me = new MessagingException("Unable to send message", e);
 
-            // "5xx text" -responses are permanent failures
-            String msg = e.getMessage();
-            if (msg != null && msg.startsWith("5")) {
-                Log.w(LOG_TAG, "handling 5xx SMTP error code as a permanent failure");
-                possibleSend = false;
+            boolean permanentFailure;
+
+            if (e instanceof NegativeSmtpReplyException) {
+                // "5xx text" -responses are permanent failures, the message
+                // was refused otherwise
+                permanentFailure = ((NegativeSmtpReplyException) e).getReplyCode() >= 500;
+            } else {
+                // if the message may have been sent, sending it again could
+                // deliver it twice
+                permanentFailure = possibleSend;
             }
 
-            me.setPermanentFailure(possibleSend);
+            // after a negative reply the session can be reset and used again,
+            // any other error leaves it in an unknown state
+            if (!(e instanceof NegativeSmtpReplyException)) {
+                closeSocket();
+            }
+
+            me.setPermanentFailure(permanentFailure);
             throw me;
-        } finally {
-            close();
         }
 
-
-
     }
     
+    /**
+     * Ends the session, the transport opens a new one when the next message
+     * is sent.
+     */
     public void close() {
-        try {
-            executeSimpleCommand("QUIT");
-        } catch (Exception e) {
+        if (mOut != null) {
+            try {
+                executeSimpleCommand("QUIT");
+            } catch (Exception e) {
 
+            }
         }
+        closeSocket();
+    }
+
+    private void closeSocket() {
         try {
             mIn.close();
         } catch (Exception e) {
@@ -427,17 +635,10 @@ public class SmtpTransport {
     
 	private String readLine() throws IOException {
         StringBuilder sb = new StringBuilder();
-        int d;
-        while ((d = mIn.read()) != -1) {
-            if (((char)d) == '\r') {
-                continue;
-            } else if (((char)d) == '\n') {
-                break;
-            } else {
-                sb.append((char)d);
-            }
-        }
+        mIn.readLineInto(sb);
         String ret = sb.toString();
+
+        mLastActivity = SystemClock.elapsedRealtime();
                 
         if (DEBUG && DEBUG_PROTOCOL_SMTP)
             Log.d(LOG_TAG, "SMTP <<< " + ret);
@@ -445,7 +646,7 @@ public class SmtpTransport {
         return ret;
     }
     
-    private void writeLine(String s, boolean sensitive) throws IOException {
+    private void writeLine(String s, boolean sensitive, boolean flush) throws IOException {
         if (DEBUG && DEBUG_PROTOCOL_SMTP) {
             final String commandToLog;
             if (sensitive && !DEBUG_SENSITIVE) {
@@ -465,7 +666,9 @@ public class SmtpTransport {
          * See issue 799.
          */
         mOut.write(data);
-        mOut.flush();
+        if (flush) {
+            mOut.flush();
+        }
     }
 
     private void checkLine(String line) throws MessagingException {
@@ -500,11 +703,21 @@ public class SmtpTransport {
 
     private List<String> executeSimpleCommand(String command, boolean sensitive)
     throws IOException, MessagingException {
-        List<String> results = new ArrayList<String>();
         if (command != null) {
-            writeLine(command, sensitive);
+            writeLine(command, sensitive, true);
         }
 
+        return readReply();
+    }
+
+    /**
+     * Reads the reply to a command.
+     *
+     * @throws NegativeSmtpReplyException if the reply code is 4xx or 5xx
+     */
+    private List<String> readReply() throws IOException, MessagingException {
+        List<String> results = new ArrayList<String>();
+
         /*
          * Read lines as long as the length is 4 or larger, e.g. "220-banner text here".
          * Shorter lines are either errors of contain only a reply code. Those cases will
@@ -619,4 +832,97 @@ public class SmtpTransport {
             return mReplyText;
         }
     }
+
+    /**
+     * Sends the data written to it as BDAT chunks (RFC 3030). With PIPELINING
+     * the replies to the chunks are read only after the last one is sent.
+     */
+    private class ChunkingOutputStream extends OutputStream {
+
+        private final byte[] mBuffer = new byte[CHUNK_SIZE];
+        private int mCount;
+        private int mPendingReplies;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mCount == mBuffer.length) {
+                sendChunk(false);
+            }
+            mBuffer[mCount++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (mCount == mBuffer.length) {
+                    sendChunk(false);
+                }
+                int n = Math.min(length, mBuffer.length - mCount);
+                System.arraycopy(buffer, offset, mBuffer, mCount, n);
+                mCount += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Sends the last chunk and checks the replies of the server.
+         */
+        public void finish() throws IOException, MessagingException {
+            sendChunk(true);
+
+            MessagingException failure = null;
+
+            for (; mPendingReplies > 0; mPendingReplies--) {
+                try {
+                    readReply();
+                } catch (NegativeSmtpReplyException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void sendChunk(boolean last) throws IOException {
+            writeLine("BDAT " + mCount + (last ? " LAST" : ""), false, false);
+            mOut.write(mBuffer, 0, mCount);
+            mCount = 0;
+            mPendingReplies++;
+
+            if (last || !mPipeliningSupported) {
+                mOut.flush();
+            }
+
+            if (!last && !mPipeliningSupported) {
+                try {
+                    readReply();
+                    mPendingReplies--;
+                } catch (MessagingException e) {
+                    throw new IOException("BDAT chunk refused: " + e.getMessage());
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Exception that is thrown when the server refuses some of the recipients of a message.
+     */
+    static class RecipientRejectedException extends NegativeSmtpReplyException {
+        private static final long serialVersionUID = 2934870137427519423L;
+
+        private final List<String> mRecipients;
+
+        public RecipientRejectedException(List<String> recipients, NegativeSmtpReplyException reply) {
+            super(reply.getReplyCode(), reply.getReplyText() + " " + recipients);
+            mRecipients = recipients;
+        }
+
+        public List<String> getRecipients() {
+            return mRecipients;
+        }
+    }
 }
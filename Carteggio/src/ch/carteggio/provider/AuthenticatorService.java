@@ -43,6 +43,10 @@ public class AuthenticatorService extends Service {
 	
 	public static final String KEY_PUSH_ENABLED = "ch.carteggio.AuthenticatorService.KEY_PUSH_ENABLED";
 	
+	public static final String KEY_COMPRESSION_ON_MOBILE = "ch.carteggio.AuthenticatorService.KEY_COMPRESSION_ON_MOBILE";
+	
+	public static final String KEY_COMPRESSION_ON_WIFI = "ch.carteggio.AuthenticatorService.KEY_COMPRESSION_ON_WIFI";
+	
 	
 	private EmailAuthenticator mAuthenticator;
 
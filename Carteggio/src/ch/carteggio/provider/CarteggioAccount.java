@@ -40,6 +40,14 @@ public interface CarteggioAccount {
 
 	public void setPushEnabled(boolean enabled);
 
+	public boolean isCompressionOnMobile();
+
+	public void setCompressionOnMobile(boolean enabled);
+
+	public boolean isCompressionOnWifi();
+
+	public void setCompressionOnWifi(boolean enabled);
+
 	public String getPushState();
 
 	public void setPushState(String state);
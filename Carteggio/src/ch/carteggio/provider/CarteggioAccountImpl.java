@@ -114,6 +114,28 @@ public class CarteggioAccountImpl implements CarteggioAccount {
 		mAccountManager.setUserData(mAccount, AuthenticatorService.KEY_PUSH_ENABLED, Boolean.toString(enabled));
 	}
 	
+	@Override
+	public boolean isCompressionOnMobile() {
+		String value = mAccountManager.getUserData(mAccount, AuthenticatorService.KEY_COMPRESSION_ON_MOBILE);
+		// enabled unless the user turned it off
+		return value == null || Boolean.parseBoolean(value);
+	}
+	
+	@Override
+	public void setCompressionOnMobile(boolean enabled) {
+		mAccountManager.setUserData(mAccount, AuthenticatorService.KEY_COMPRESSION_ON_MOBILE, Boolean.toString(enabled));
+	}
+	
+	@Override
+	public boolean isCompressionOnWifi() {
+		return Boolean.parseBoolean(mAccountManager.getUserData(mAccount, AuthenticatorService.KEY_COMPRESSION_ON_WIFI));
+	}
+	
+	@Override
+	public void setCompressionOnWifi(boolean enabled) {
+		mAccountManager.setUserData(mAccount, AuthenticatorService.KEY_COMPRESSION_ON_WIFI, Boolean.toString(enabled));
+	}
+	
 	@Override
 	public String getPushState() {
 		return mAccountManager.getUserData(mAccount, AuthenticatorService.KEY_PUSH_STATE);
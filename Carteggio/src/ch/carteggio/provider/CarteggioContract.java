@@ -52,6 +52,7 @@ public final class CarteggioContract {
 		public static final int STATE_WAITING_TO_BE_SENT = 3;
 		public static final int STATE_WAITING_TO_BE_READ = 4;
 		public static final int STATE_READ_LOCALLY_CONFIRMD_TO_REMOTE = 5;
+		public static final int STATE_REFUSED_BY_SERVER = 6;
 		
 		public static final Uri CONTENT_URI = Uri.withAppendedPath(AUTHORITY_URI, "messages");
 	
@@ -66,7 +67,12 @@ public final class CarteggioContract {
 		public static boolean isOutgoing(int state) {
 			return state == STATE_DELIVERED_TO_SERVER ||
 					state == STATE_WAITING_TO_BE_SENT || 
-					state == STATE_RECEIVED_BY_DESTINATION;
+					state == STATE_RECEIVED_BY_DESTINATION ||
+					state == STATE_REFUSED_BY_SERVER;
+		}
+		
+		public static boolean isRefused(int state) {			
+			return state == STATE_REFUSED_BY_SERVER;						
 		}
 		
 	
@@ -306,6 +306,47 @@ public class CarteggioProviderHelper {
 		setMessageState(ContentUris.withAppendedId(Messages.CONTENT_URI, message), state);
 	}
 	
+	/**
+	 * Handles a read receipt for a message: the peers confirm only the newest
+	 * message they read in a conversation, so all the messages we sent in the
+	 * conversation up to that one are marked as received.
+	 */
+	public void setMessagesReceivedUpTo(CarteggioAccount account, Uri message) {
+		
+		ContentResolver cr = mContext.getContentResolver();
+		
+		Cursor c = cr.query(message, new String[] { Messages.CONVERSATION_ID, Messages.SENT_DATE }, null, null, null);
+		
+		long conversationId;
+		long sentDate;
+		
+		try {
+			
+			if ( !c.moveToFirst()) {
+				return;
+			}
+			
+			conversationId = c.getLong(c.getColumnIndex(Messages.CONVERSATION_ID));
+			sentDate = c.getLong(c.getColumnIndex(Messages.SENT_DATE));
+			
+		} finally {
+			c.close();
+		}
+		
+		ContentValues values = new ContentValues();
+		
+		values.put(Messages.STATE, Messages.STATE_RECEIVED_BY_DESTINATION);
+		
+		// the provider doesn't pass the selection arguments when looking for the 
+		// changed messages to notify, so the values are part of the selection
+		cr.update(Messages.CONTENT_URI, values, 
+					Messages.CONVERSATION_ID + " = " + conversationId + " AND " + 
+					Messages.SENDER_ID + " = " + account.getContactId() + " AND " + 
+					Messages.SENT_DATE + " <= " + sentDate + " AND " + 
+					Messages.STATE + " = " + Messages.STATE_DELIVERED_TO_SERVER, null);
+		
+	}
+	
 	public String getConversationSubject(Uri conversation) {
 		
 		ContentResolver cr = mContext.getContentResolver();
@@ -42,7 +42,6 @@ import ch.carteggio.net.MessagingException;
 import ch.carteggio.net.MessageStore.Folder;
 import ch.carteggio.provider.CarteggioAccount;
 import ch.carteggio.provider.CarteggioProviderHelper;
-import ch.carteggio.provider.CarteggioContract.Messages;
 
 public class IncomingMessagesProcessor {
 			
@@ -79,8 +78,15 @@ public class IncomingMessagesProcessor {
 		
 		Message[] messages = folder.getMessagesAfter(syncPoint);
 		
-		// now look for messages that are for us and update the database
-		processMessages(folder, messages);
+		try {
+			// now look for messages that are for us and update the database
+			processMessages(folder, messages);
+		} finally {
+			// release the fetched bodies, the large ones are spooled to files
+			for (Message message : messages) {
+				message.dispose();
+			}
+		}
 		
 		// save the sync point only after we finished processing the messages
 		mAccount.setPushState(syncPoint.save());
@@ -150,7 +156,7 @@ public class IncomingMessagesProcessor {
 			
 			Log.d(LOG_TAG, "Received receipt");
 			
-			mHelper.setMessageState(message, Messages.STATE_RECEIVED_BY_DESTINATION);
+			mHelper.setMessagesReceivedUpTo(mAccount, message);
 		}
 	
 		Folder carteggioFolder = folder.getMessageStore().getPrivateFolder();
@@ -289,9 +289,13 @@ public class MessageReceiverService extends Service {
 					
 				} else {
 									
+					boolean messagesAdded = true;
+					
 					while (!interrupted()) {
 		
-						mProcessor.processFolder(mFolder);
+						if (messagesAdded) {
+							mProcessor.processFolder(mFolder);
+						}
 		
 						Log.d(getLogTag(), "Starting waiting for messages");
 		
@@ -306,6 +310,10 @@ public class MessageReceiverService extends Service {
 						mWakeLock.acquire();
 		
 						Log.d(getLogTag(), "Received poll request, checking for new messages");
+						
+						// retrieve the messages only if the server tells that some were added
+						SynchronizationPoint syncPoint = mStore.createSynchronizationPoint(mAccount.getPushState());
+						messagesAdded = mFolder.hasMessagesAfter(syncPoint);
 					
 					}
 					
@@ -83,16 +83,22 @@ public class MessageSenderService extends IntentService {
 					OutgoingMessagesProcessor processor = new OutgoingMessagesProcessor(getApplicationContext(), carteggioAccount);
 					
 					try {
-						processor.sendPendingMessages();
-					} catch (MessagingException e) {
-						failures = true;
-					}
-					
-					try {
-						processor.sendPendingConfirmations();
-					} catch (MessagingException e) {
-						failures = true;
-						message = ( message.length() == 0 ? "" : ", ") + e.getMessage();
+						
+						try {
+							processor.sendPendingMessages();
+						} catch (MessagingException e) {
+							failures = true;
+						}
+						
+						try {
+							processor.sendPendingConfirmations();
+						} catch (MessagingException e) {
+							failures = true;
+							message = ( message.length() == 0 ? "" : ", ") + e.getMessage();
+						}
+						
+					} finally {
+						processor.close();
 					}
 					
 					
@@ -14,7 +14,9 @@ package ch.carteggio.provider.sync;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
+import org.apache.james.mime4j.dom.Message;
 import org.apache.james.mime4j.field.address.ParseException;
 
 import android.content.ContentResolver;
@@ -25,6 +27,7 @@ import android.net.Uri;
 import android.util.Log;
 import ch.carteggio.net.ConfirmationReceipt;
 import ch.carteggio.net.MessageTransport;
+import ch.carteggio.net.MessageTransport.Result;
 import ch.carteggio.net.MessagingException;
 import ch.carteggio.net.NetworkFactories;
 import ch.carteggio.net.TextMessage;
@@ -43,6 +46,8 @@ public class OutgoingMessagesProcessor {
 
 	private ContentResolver mContentResolver;
 	private Context mContext;
+	
+	private MessageTransport mTransport;
 
 	private static String[] MESSAGES_PROJECTION = new String[] { Messages._ID,
 																   Messages.CONVERSATION_ID, 
@@ -63,21 +68,71 @@ public class OutgoingMessagesProcessor {
 	
 		
 	
+	/**
+	 * Returns the transport used to send messages, the same one is used for
+	 * the whole send pass so that its connection can be reused.
+	 */
+	private MessageTransport getTransport() throws MessagingException {
+		
+		if ( mTransport == null ) {
+			mTransport = NetworkFactories.getInstance(mContext).getMessageTransport(mAccount);
+		}
+		
+		return mTransport;
+	}
+	
+	/**
+	 * Ends the send pass, closing the connection to the server.
+	 */
+	public void close() {
+		
+		if ( mTransport != null ) {
+			mTransport.close();
+			mTransport = null;
+		}
+		
+	}
+	
+	/**
+	 * Sends the read confirmations, a single receipt is sent for each
+	 * conversation referencing the newest message that was read: the peer
+	 * takes it as a confirmation for all the messages sent before that one.
+	 */
 	public void sendPendingConfirmations() throws MessagingException {
 		
 		boolean someMessagesFailed = false;
 		
-		Cursor c = mContentResolver.query(Messages.CONTENT_URI, MESSAGES_PROJECTION, READ_MESSAGES_CONDITION, null, null);
+		// the messages confirmed by each of the receipts
+		ArrayList<List<Long>> messageIds = new ArrayList<List<Long>>();
+		ArrayList<Message> receipts = new ArrayList<Message>();
+		
+		Cursor c = mContentResolver.query(Messages.CONTENT_URI, MESSAGES_PROJECTION, READ_MESSAGES_CONDITION, null, 
+											Messages.CONVERSATION_ID + ", " + Messages.SENT_DATE + " DESC");
 		
 		try {
-					
-			MessageTransport transport = NetworkFactories.getInstance(mContext).getMessageTransport(mAccount);
-							
+			
+			long previousConversationId = -1;
+			List<Long> confirmedIds = null;
+			
 			while (c.moveToNext()) {
 
 				long messageId = c.getLong(c.getColumnIndex(Messages._ID));
 				long conversationId = c.getLong(c.getColumnIndex(Messages.CONVERSATION_ID));				
 				
+				if ( conversationId == previousConversationId ) {
+					
+					// an older message of a conversation for which the receipt
+					// has already been created 
+					if ( confirmedIds != null ) {
+						confirmedIds.add(messageId);
+					}
+					
+					continue;
+				}
+				
+				previousConversationId = conversationId;
+				confirmedIds = null;
+				
 				Uri conversationUri = ContentUris.withAppendedId(Conversations.CONTENT_URI, conversationId);
 				
 				String senderMailbox = mAccount.getDisplayName() + " <" + mAccount.getEmail() + ">";
@@ -92,8 +147,6 @@ public class OutgoingMessagesProcessor {
 									
 				try {
 				
-					Log.d(LOG_TAG, "Sending confirmation");
-					
 					ConfirmationReceipt receipt = new ConfirmationReceipt.Builder().setFrom(senderMailbox)
 							   .setDestinations(destinationMailboxes)
 							   .setSubject(messageSubject)
@@ -102,27 +155,63 @@ public class OutgoingMessagesProcessor {
 							   .setDate(new Date())
 							   .build();		
 					
-					transport.sendMessage(receipt.getMessage());
-										
-					mHelper.setMessageState(messageId , Messages.STATE_READ_LOCALLY_CONFIRMD_TO_REMOTE);
+					confirmedIds = new ArrayList<Long>();
+					confirmedIds.add(messageId);
+					
+					messageIds.add(confirmedIds);
+					receipts.add(receipt.getMessage());
 					
 				} catch (ParseException ex) {
 					Log.e(LOG_TAG, "Unable to parse address", ex);
 					someMessagesFailed = true;
-				} catch (MessagingException ex) {
-					Log.e(LOG_TAG, "Unable to send message", ex);
-					someMessagesFailed = true;
 				}
 				
 			}
 			
 		} catch (Exception e) {
-			Log.e(LOG_TAG, "Unable to create transport", e);
+			Log.e(LOG_TAG, "Unable to prepare confirmations", e);
 			someMessagesFailed = true;
 		} finally {
 			c.close();
 		}
 		
+		if ( !receipts.isEmpty() ) {
+			
+			try {
+				
+				Log.d(LOG_TAG, "Sending " + receipts.size() + " confirmations");
+				
+				List<Result> results = getTransport().sendMessages(receipts);
+				
+				for ( int i = 0; i < results.size(); i++) {
+					
+					Result result = results.get(i);
+					
+					switch (result.getStatus()) {
+					case DELIVERED:
+						setMessagesState(messageIds.get(i), Messages.STATE_READ_LOCALLY_CONFIRMD_TO_REMOTE);
+						break;
+					case PERMANENT_FAILURE:
+						// the server will never accept this confirmation, don't
+						// try sending it again
+						Log.e(LOG_TAG, "Confirmation refused by the server", result.getError());
+						setMessagesState(messageIds.get(i), Messages.STATE_READ_LOCALLY_CONFIRMD_TO_REMOTE);
+						break;
+					default:
+						Log.e(LOG_TAG, "Unable to send confirmation", result.getError());
+						someMessagesFailed = true;
+						break;
+					}
+					
+				}
+				
+			} catch (Exception e) {
+				Log.e(LOG_TAG, "Unable to create transport", e);
+				someMessagesFailed = true;
+			}
+			
+		}
+		
 		if ( someMessagesFailed ) {
 			throw new MessagingException("Sending some confirmations failed");
 		}
@@ -130,16 +219,25 @@ public class OutgoingMessagesProcessor {
 	}
 	
 	
+	private void setMessagesState(List<Long> messageIds, int state) {
+		
+		for ( long messageId : messageIds ) {
+			mHelper.setMessageState(messageId, state);
+		}
+		
+	}
+	
 	public void sendPendingMessages() throws MessagingException {
 				
 		boolean messagesFailed = false;
 		
+		ArrayList<Long> messageIds = new ArrayList<Long>();
+		ArrayList<Message> messages = new ArrayList<Message>();
+		
 		Cursor c = mContentResolver.query(Messages.CONTENT_URI, MESSAGES_PROJECTION, OUTGOING_MESSAGES_CONDITION, null, null);
 		
 		try {
 						
-			MessageTransport transport = NetworkFactories.getInstance(mContext).getMessageTransport(mAccount);
-			
 			while (c.moveToNext()) {
 
 				long messageId = c.getLong(c.getColumnIndex(Messages._ID));
@@ -168,8 +266,6 @@ public class OutgoingMessagesProcessor {
 
 				try {
 					
-					Log.d(LOG_TAG, "Sending message");					
-					
 					TextMessage message = new TextMessage.Builder().setFrom(senderMailbox)
 																   .setDestinations(destinationMailboxes)															   
 																   .setMessageId(messageGlobalId)
@@ -180,26 +276,61 @@ public class OutgoingMessagesProcessor {
 																   .setText(messageText)
 																   .build();
 							   
-					transport.sendMessage(message.getMessage());				
-					
-					mHelper.setMessageState(messageId , Messages.STATE_DELIVERED_TO_SERVER);
+					messageIds.add(messageId);
+					messages.add(message.getMessage());
 					
 				} catch (ParseException ex) {
 					Log.e(LOG_TAG, "Unable to parse address", ex);
 					messagesFailed = true;
-				} catch (MessagingException ex) {
-					Log.e(LOG_TAG, "Unable to send message", ex);
-					messagesFailed = true;
 				}
 				
 			}
 		} catch (Exception ex) {
-			Log.e(LOG_TAG, "Unable to send message", ex);
+			Log.e(LOG_TAG, "Unable to prepare messages", ex);
 			messagesFailed = true;
 		} finally {
 			c.close();
 		}
 		
+		if ( !messages.isEmpty() ) {
+			
+			try {
+				
+				Log.d(LOG_TAG, "Sending " + messages.size() + " messages");
+				
+				List<Result> results = getTransport().sendMessages(messages);
+				
+				for ( int i = 0; i < results.size(); i++) {
+					
+					Result result = results.get(i);
+					
+					switch (result.getStatus()) {
+					case DELIVERED:
+						mHelper.setMessageState(messageIds.get(i), Messages.STATE_DELIVERED_TO_SERVER);
+						break;
+					case PERMANENT_FAILURE:
+						// the server will never accept this message, it is taken
+						// out of the queue instead of being sent on every pass
+						Log.e(LOG_TAG, "Message refused by the server", result.getError());
+						mHelper.setMessageState(messageIds.get(i), Messages.STATE_REFUSED_BY_SERVER);
+						messagesFailed = true;
+						break;
+					default:
+						// the message stays in the queue and is sent again
+						Log.e(LOG_TAG, "Unable to send message (" + result.getStatus() + ")", result.getError());
+						messagesFailed = true;
+						break;
+					}
+					
+				}
+				
+			} catch (Exception ex) {
+				Log.e(LOG_TAG, "Unable to send message", ex);
+				messagesFailed = true;
+			}
+			
+		}
+		
 		if (messagesFailed) {
 			throw new MessagingException("Failed to send some messages");
 		}
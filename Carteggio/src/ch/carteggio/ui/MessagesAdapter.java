@@ -90,11 +90,12 @@ public class MessagesAdapter extends CursorAdapter {
 		
 		boolean isSent = Messages.isSent(state);
 		boolean isReceived = Messages.isDelivered(state);
+		boolean isRefused = Messages.isRefused(state);
 				
 		if ( type == TYPE_INCOMING ) {		
 			messageDetails.setText(NiceDateFormat.niceDate(date));			
 		} else {
-			messageDetails.setText(NiceDateFormat.niceDate(date) + ( isSent ? "✓" : "" ) + ( isReceived ? "✓" : "" ));
+			messageDetails.setText(NiceDateFormat.niceDate(date) + ( isSent ? "✓" : "" ) + ( isReceived ? "✓" : "" ) + ( isRefused ? "✗" : "" ));
 		}
 		
 		TextView messageText = (TextView) view.findViewById(R.id.message);
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package ch.carteggio.net.imap.parsing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class ImapDateParserTest {
+
+	private static Date date(int year, int month, int day, int hour, int minute,
+			int second, String zone) {
+		GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone(zone));
+		calendar.clear();
+		calendar.set(year, month, day, hour, minute, second);
+		return calendar.getTime();
+	}
+
+	@Test
+	public void testInternalDate() {
+		assertEquals(date(1996, Calendar.JULY, 17, 2, 44, 25, "GMT-07:00"),
+				ImapDateParser.parse("17-Jul-1996 02:44:25 -0700"));
+	}
+
+	@Test
+	public void testInternalDateWithSingleDigitDay() {
+		assertEquals(date(2014, Calendar.JANUARY, 1, 0, 0, 0, "GMT"),
+				ImapDateParser.parse(" 1-Jan-2014 00:00:00 +0000"));
+	}
+
+	@Test
+	public void testPositiveOffset() {
+		assertEquals(date(2000, Calendar.FEBRUARY, 1, 23, 59, 59, "GMT+05:30"),
+				ImapDateParser.parse("01-Feb-2000 23:59:59 +0530"));
+	}
+
+	@Test
+	public void testHeaderDate() {
+		assertEquals(date(1996, Calendar.JULY, 17, 2, 44, 25, "GMT-07:00"),
+				ImapDateParser.parse("Wed, 17 Jul 1996 02:44:25 -0700"));
+	}
+
+	@Test
+	public void testZoneName() {
+		assertEquals(date(2014, Calendar.MARCH, 15, 10, 0, 0, "GMT"),
+				ImapDateParser.parse("15-Mar-2014 10:00:00 GMT"));
+	}
+
+	@Test
+	public void testCommentAfterZone() {
+		assertEquals(date(1996, Calendar.JULY, 17, 2, 44, 25, "GMT-07:00"),
+				ImapDateParser.parse("17 Jul 1996 02:44:25 -0700 (PDT)  "));
+	}
+
+	@Test
+	public void testNestedComment() {
+		assertEquals(date(1996, Calendar.JULY, 17, 2, 44, 25, "GMT+02:00"),
+				ImapDateParser.parse("17-Jul-1996 02:44:25 +0200 (CEST (summer))"));
+	}
+
+	@Test
+	public void testUnclosedComment() {
+		assertEquals(date(1996, Calendar.JULY, 17, 2, 44, 25, "GMT"),
+				ImapDateParser.parse("17-Jul-1996 02:44:25 +0000 (unclosed"));
+	}
+
+	@Test
+	public void testInvalidMonth() {
+		assertNull(ImapDateParser.parse("17-Foo-1996 02:44:25 -0700"));
+	}
+
+	@Test
+	public void testGarbage() {
+		assertNull(ImapDateParser.parse("garbage"));
+	}
+
+}
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package ch.carteggio.net.imap.parsing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.carteggio.net.FixedLengthInputStream;
+import ch.carteggio.net.PeekableInputStream;
+
+public class ImapResponseParserTest {
+
+	/**
+	 * Returns the data a few bytes at a time, like a slow network.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+
+		private final InputStream mIn;
+
+		public ChunkedInputStream(byte[] data) {
+			mIn = new ByteArrayInputStream(data);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return mIn.read();
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			return mIn.read(b, offset, Math.min(length, 3));
+		}
+
+	}
+
+	/**
+	 * Records the events reported for FETCH responses.
+	 */
+	private static class RecordingFetchCallback implements IImapFetchCallback {
+
+		private List<String> mEvents = new ArrayList<String>();
+
+		@Override
+		public void onFetchStart(long messageNumber) throws Exception {
+			mEvents.add("start " + messageNumber);
+		}
+
+		@Override
+		public void onUid(long uid) throws Exception {
+			mEvents.add("uid " + uid);
+		}
+
+		@Override
+		public void onFlag(String flag) throws Exception {
+			mEvents.add("flag " + flag);
+		}
+
+		@Override
+		public void onInternalDate(String internalDate) throws Exception {
+			mEvents.add("date " + internalDate);
+		}
+
+		@Override
+		public void onSize(long size) throws Exception {
+			mEvents.add("size " + size);
+		}
+
+		@Override
+		public void onBodyStructureNode(BodyStructureNode node) throws Exception {
+			mEvents.add("node " + node.mPartId + " " + node.mType + "/" + node.mSubType
+					+ " " + node.mSize);
+		}
+
+		@Override
+		public void onLiteral(String section, FixedLengthInputStream literal) throws Exception {
+			StringBuilder data = new StringBuilder();
+			int c;
+			while ((c = literal.read()) != -1) {
+				data.append((char) c);
+			}
+			mEvents.add("literal " + section + " " + data);
+		}
+
+		@Override
+		public void onFetchEnd() throws Exception {
+			mEvents.add("end");
+		}
+
+	}
+
+	private static ImapResponseParser createParser(String data) throws IOException {
+		return new ImapResponseParser(new PeekableInputStream(
+				new ChunkedInputStream(data.getBytes("ISO-8859-1")), 4));
+	}
+
+	@Test
+	public void testTaggedResponse() throws Exception {
+		ImapResponse response = createParser("1 OK [READ-WRITE] Select completed.\r\n")
+				.readResponse();
+
+		assertEquals("1", response.mTag);
+		assertEquals(3, response.size());
+		assertEquals("OK", response.getString(0));
+		assertEquals("READ-WRITE", response.getList(1).getString(0));
+		assertEquals("Select completed.", response.getString(2));
+	}
+
+	@Test
+	public void testUntaggedResponse() throws Exception {
+		ImapResponse response = createParser("* 23 EXISTS\r\n").readResponse();
+
+		assertNull(response.mTag);
+		assertEquals(23, response.getNumber(0));
+		assertEquals("EXISTS", response.getString(1));
+	}
+
+	@Test
+	public void testContinuationRequest() throws Exception {
+		ImapResponse response = createParser("+ idling\r\n").readResponse();
+
+		assertTrue(response.mCommandContinuationRequested);
+	}
+
+	@Test
+	public void testResponseCode() throws Exception {
+		ImapResponse response = createParser("* OK [UIDNEXT 57576] Predicted next UID\r\n")
+				.readResponse();
+
+		assertEquals(57576, response.getList(1).getKeyedNumber("UIDNEXT"));
+	}
+
+	@Test
+	public void testQuotedStringWithEscapes() throws Exception {
+		ImapResponse response = createParser("* LIST (\\HasNoChildren) \"/\" \"a \\\"q\\\\ b\"\r\n")
+				.readResponse();
+
+		assertEquals("\\HasNoChildren", response.getList(1).getString(0));
+		assertEquals("/", response.getString(2));
+		assertEquals("a \"q\\ b", response.getString(3));
+	}
+
+	@Test
+	public void testNil() throws Exception {
+		ImapResponse response = createParser("* NAMESPACE ((\"\" \"/\")) NIL NIL\r\n")
+				.readResponse();
+
+		assertEquals(4, response.size());
+		assertEquals("", response.getList(1).getList(0).getString(0));
+		assertEquals("NIL", response.getString(2));
+		assertEquals("NIL", response.getString(3));
+	}
+
+	@Test
+	public void testLiteral() throws Exception {
+		ImapResponse response = createParser("* 1 FETCH (UID 7 BODY[TEXT] {7}\r\nhe)\r\nlo)\r\n")
+				.readResponse();
+
+		ImapList attributes = response.getKeyedList("FETCH");
+		assertEquals(7, attributes.getKeyedNumber("UID"));
+		assertEquals("he)\r\nlo", attributes.getString(4));
+	}
+
+	@Test
+	public void testLiteralPassedToCallback() throws Exception {
+		ImapResponse response = createParser("* 1 FETCH (BODY[] {5}\r\nhello)\r\n").readResponse(
+				new IImapResponseCallback() {
+
+					@Override
+					public Object foundLiteral(ImapResponse response,
+							FixedLengthInputStream literal) throws Exception {
+						// read only part of the literal, the parser skips the rest
+						return "read " + (char) literal.read();
+					}
+
+				});
+
+		assertEquals("read h", response.getKeyedList("FETCH").getString(2));
+	}
+
+	@Test
+	public void testResponsesAfterLiteral() throws Exception {
+		ImapResponseParser parser = createParser("* 1 FETCH (BODY[] {3}\r\nabc)\r\n2 OK done\r\n");
+
+		parser.readResponse();
+		ImapResponse response = parser.readResponse();
+
+		assertEquals("2", response.mTag);
+		assertEquals("done", response.getString(1));
+	}
+
+	@Test
+	public void testFetchCallback() throws Exception {
+		RecordingFetchCallback callback = new RecordingFetchCallback();
+
+		ImapResponse response = createParser("* 12 FETCH (FLAGS (\\Seen $Forwarded) UID 345 "
+				+ "INTERNALDATE \"17-Jul-1996 02:44:25 -0700\" RFC822.SIZE 4286 "
+				+ "BODY[HEADER] {11}\r\nSubject: x\n BODY[1] NIL)\r\n")
+				.readResponse(null, callback);
+
+		assertEquals("FETCH", response.getString(1));
+
+		List<String> expected = new ArrayList<String>();
+		expected.add("start 12");
+		expected.add("flag \\Seen");
+		expected.add("flag $Forwarded");
+		expected.add("uid 345");
+		expected.add("date 17-Jul-1996 02:44:25 -0700");
+		expected.add("size 4286");
+		expected.add("literal HEADER Subject: x\n");
+		expected.add("end");
+		assertEquals(expected, callback.mEvents);
+	}
+
+	@Test
+	public void testBodyStructure() throws Exception {
+		RecordingFetchCallback callback = new RecordingFetchCallback();
+
+		createParser("* 13 FETCH (UID 346 BODYSTRUCTURE ((\"TEXT\" \"PLAIN\" (\"CHARSET\" \"UTF-8\") "
+				+ "NIL NIL \"QUOTED-PRINTABLE\" 12 1 NIL NIL NIL)(\"APPLICATION\" \"OCTET-STREAM\" "
+				+ "NIL NIL NIL \"BASE64\" 1200 NIL (\"ATTACHMENT\" (\"FILENAME\" \"x.bin\")) NIL) "
+				+ "\"MIXED\" (\"BOUNDARY\" \"b1\") NIL NIL))\r\n").readResponse(null, callback);
+
+		assertEquals("node 1 TEXT/PLAIN 12", callback.mEvents.get(2));
+		assertEquals("node 2 APPLICATION/OCTET-STREAM 1200", callback.mEvents.get(3));
+		assertEquals("node TEXT null/MIXED 0", callback.mEvents.get(4));
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedUid() throws Exception {
+		createParser("* 1 FETCH (UID abc)\r\n").readResponse(null, new RecordingFetchCallback());
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedBodyStructureSize() throws Exception {
+		createParser("* 1 FETCH (BODYSTRUCTURE (\"TEXT\" \"PLAIN\" NIL NIL NIL \"7BIT\" NIL 1))\r\n")
+				.readResponse(null, new RecordingFetchCallback());
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedLiteralSize() throws Exception {
+		createParser("* 1 FETCH (BODY[] {5x}\r\nhello)\r\n").readResponse();
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedResponse() throws Exception {
+		createParser("* 1 FETCH (BODY[] {10}\r\nhel").readResponse();
+	}
+
+	@Test
+	public void testCallbackExceptionIsDeferred() throws Exception {
+		ImapResponseParser parser = createParser("* 1 FETCH (UID 5 FLAGS (\\Seen))\r\n"
+				+ "* 2 EXISTS\r\n");
+
+		try {
+			parser.readResponse(null, new RecordingFetchCallback() {
+
+				@Override
+				public void onUid(long uid) throws Exception {
+					throw new IllegalStateException("no message " + uid);
+				}
+
+			});
+			fail("the exception of the callback was not reported");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		// the response was read up to its end
+		ImapResponse response = parser.readResponse();
+		assertEquals("EXISTS", response.getString(1));
+	}
+
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package ch.carteggio.net.smtp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class EOLConvertingOutputStreamTest {
+
+	private static String convert(String... writes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+		for (String data : writes) {
+			eolOut.write(data.getBytes("ISO-8859-1"));
+			eolOut.flush();
+		}
+		return out.toString("ISO-8859-1");
+	}
+
+	@Test
+	public void testCrlfIsKept() throws Exception {
+		assertEquals("a\r\nb\r\n", convert("a\r\nb\r\n"));
+	}
+
+	@Test
+	public void testBareLf() throws Exception {
+		assertEquals("a\r\n\r\nb", convert("a\n\nb"));
+	}
+
+	@Test
+	public void testLfAtStartOfWrite() throws Exception {
+		assertEquals("a\r\n\r\nb", convert("a", "\n", "\nb"));
+	}
+
+	@Test
+	public void testCrAtEndOfData() throws Exception {
+		assertEquals("a\r\n", convert("a\r"));
+	}
+
+	@Test
+	public void testCrlfSplitAcrossWrites() throws Exception {
+		assertEquals("a\r\nb", convert("a\r", "\nb"));
+	}
+
+	@Test
+	public void testSingleByteWrites() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+		for (byte b : "a\nb\r\nc".getBytes("ISO-8859-1")) {
+			eolOut.write(b);
+		}
+		eolOut.flush();
+		assertEquals("a\r\nb\r\nc", out.toString("ISO-8859-1"));
+	}
+
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2014, Lorenzo Keller
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package ch.carteggio.net.smtp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class SmtpDataEncoderTest {
+
+	private static String encode(int maxLineLength, String... writes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SmtpDataEncoder encoder = new SmtpDataEncoder(out, maxLineLength);
+		for (String data : writes) {
+			encoder.write(data.getBytes("ISO-8859-1"));
+			encoder.flush();
+		}
+		return out.toString("ISO-8859-1");
+	}
+
+	private static String encode(String... writes) throws IOException {
+		return encode(1000, writes);
+	}
+
+	@Test
+	public void testCrlfIsKept() throws Exception {
+		assertEquals("a\r\nb\r\n", encode("a\r\nb\r\n"));
+	}
+
+	@Test
+	public void testBareLf() throws Exception {
+		assertEquals("a\r\nb\r\n\r\n", encode("a\nb\n\n"));
+	}
+
+	@Test
+	public void testCrAtEndOfData() throws Exception {
+		assertEquals("a\r\n", encode("a\r"));
+	}
+
+	@Test
+	public void testCrlfSplitAcrossWrites() throws Exception {
+		assertEquals("a\r\nb", encode("a\r", "\nb"));
+	}
+
+	@Test
+	public void testDotStuffing() throws Exception {
+		assertEquals("..a\r\nb\r\n..\r\nc.d\r\n", encode(".a\r\nb\r\n.\r\nc.d\r\n"));
+	}
+
+	@Test
+	public void testDotStuffingAfterBareLf() throws Exception {
+		assertEquals("a\r\n..b", encode("a\n.b"));
+	}
+
+	@Test
+	public void testDotStuffingAcrossWrites() throws Exception {
+		assertEquals("a\r\n..b", encode("a\r\n", ".b"));
+	}
+
+	@Test
+	public void testLongLineWrappedAtSpace() throws Exception {
+		assertEquals("aaaa bbbb\r\ncccc\r\n", encode(12, "aaaa bbbb cccc\r\n"));
+	}
+
+	@Test
+	public void testLongLineWithoutSpace() throws Exception {
+		assertEquals("aaaaaaaaaa\r\nbbb\r\n", encode(12, "aaaaaaaaaabbb\r\n"));
+	}
+
+	@Test
+	public void testDotStuffingOfWrappedLine() throws Exception {
+		assertEquals("aaaaaaaaaa\r\n..b\r\n", encode(12, "aaaaaaaaaa.b\r\n"));
+	}
+
+}